@@ -9,11 +9,38 @@ repositories {
     mavenCentral()
 }
 
+// JMH 基准测试单独放在 jmh source set 里, 不参与 build, 用 gradle jmh 运行
+val jmh: SourceSet by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output
+    runtimeClasspath += sourceSets.main.get().output
+}
+
 dependencies {
     testImplementation(platform("org.junit:junit-bom:5.10.0"))
     testImplementation("org.junit.jupiter:junit-jupiter")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher")
+
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:1.37")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.37")
+}
+
+tasks.withType<JavaCompile> {
+    options.encoding = "UTF-8"
 }
 
 tasks.test {
     useJUnitPlatform()
-}
\ No newline at end of file
+}
+
+// 结果带 GC profiler 的数据, 以 JSON 写到 build/reports/jmh/results.json
+// -PjmhInclude=<正则> 只运行匹配的基准, 例如 -PjmhInclude=interpret
+tasks.register<JavaExec>("jmh") {
+    group = "benchmark"
+    description = "Runs the JMH benchmarks."
+    classpath = jmh.runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+    val results = layout.buildDirectory.file("reports/jmh/results.json").get().asFile
+    args("-prof", "gc", "-rf", "json", "-rff", results.path)
+    providers.gradleProperty("jmhInclude").orNull?.let { args(it) }
+    doFirst { results.parentFile.mkdirs() }
+}
@@ -0,0 +1,113 @@
+package com.gmail.coldrain608.lox;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// 分别测量 Scanner, Parser, Resolver 和 Interpreter 在 src/jmh/resources/lox 下各个脚本上的耗时
+// 运行 gradle jmh, 结果带 GC profiler 的数据写到 build/reports/jmh/results.json
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoxBenchmark {
+
+    @Param({"fib", "binary_trees", "methods", "strings", "closures"})
+    public String workload;
+
+    private String source;
+    private TokenBuffer tokens;
+    private List<Stmt> statements;
+    private List<Stmt> optimized;
+    private PrintStream out;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        try (InputStream input = LoxBenchmark.class.getResourceAsStream("/lox/" + workload + ".lox")) {
+            if (input == null) throw new IOException("Missing workload " + workload);
+            source = new String(input.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        tokens = new Scanner(source).scanTokens();
+        statements = new Parser(tokens).parse();
+        new Resolver().resolve(statements);
+        if (Lox.hadError) throw new IllegalStateException("Workload " + workload + " has errors.");
+        optimized = compile(source);
+
+        // 脚本里的 print 不计入结果, 也不要刷屏
+        out = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(out);
+        if (Lox.hadRuntimeError) throw new IllegalStateException("Workload " + workload + " failed.");
+    }
+
+    @Benchmark
+    public TokenBuffer scan() {
+        return new Scanner(source).scanTokens();
+    }
+
+    @Benchmark
+    public List<Stmt> parse() {
+        return new Parser(tokens).parse();
+    }
+
+    // Resolver 只回填 AST 上的字段, 对同一棵树重复 resolve 结果不变
+    @Benchmark
+    public List<Stmt> resolve() {
+        new Resolver().resolve(statements);
+        return statements;
+    }
+
+    // 和 Lox.run 一样执行优化后的语法树
+    private static List<Stmt> compile(String source) {
+        List<Stmt> statements = new Parser(new Scanner(source).scanTokens()).parse();
+        new Resolver().resolve(statements);
+        return new Optimizer().optimize(statements);
+    }
+
+    // 语法树上记着调用次数, Jit 编译的结果, 内联缓存和特化的节点, 执行过一次就不再是冷的
+    // 每次调用前重新解析, 测的是一次完整运行的耗时, 包括从解释执行到 Jit 编译的过程
+    @State(Scope.Thread)
+    public static class FreshTree {
+        List<Stmt> statements;
+
+        @Setup(Level.Invocation)
+        public void setUp(LoxBenchmark benchmark) {
+            statements = compile(benchmark.source);
+        }
+    }
+
+    @Benchmark
+    public void interpret(FreshTree tree) {
+        new Interpreter().interpret(tree.statements);
+    }
+
+    // 反复执行同一棵语法树, 缓存和 Jit 编译的代码都已就绪, 测的是稳定状态的耗时
+    @Benchmark
+    public void interpretSteadyState() {
+        new Interpreter().interpret(optimized);
+    }
+}
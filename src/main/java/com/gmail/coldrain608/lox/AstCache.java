@@ -0,0 +1,660 @@
+package com.gmail.coldrain608.lox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// 把 resolve 之后的语法树缓存到磁盘, 同一个脚本再次运行时跳过 Scanner, Parser 和 Resolver
+// 文件名是 VERSION 和脚本内容的 SHA-256, 脚本或语法树的格式变了都会换一个文件名
+// -Dlox.cache.dir=DIR 打开缓存, 读写缓存失败时当作没有缓存, 不影响脚本运行
+final class AstCache {
+
+    // 语法树的结构或者这里的编码方式改变时加一
+    private static final int VERSION = 6;
+    private static final int MAGIC = 0x4c4f5843;
+    private static final String DIRECTORY = System.getProperty("lox.cache.dir");
+
+    static boolean isEnabled() {
+        return DIRECTORY != null;
+    }
+
+    static Path path(Path script) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(ByteBuffer.allocate(4).putInt(VERSION).array());
+        // 直接对映射的文件求哈希, 不需要把内容读进堆里
+        try (FileChannel channel = FileChannel.open(script, StandardOpenOption.READ)) {
+            digest.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+        StringBuilder name = new StringBuilder();
+        for (byte b : digest.digest()) {
+            name.append(String.format("%02x", b));
+        }
+        return Paths.get(DIRECTORY, name.append(".astc").toString());
+    }
+
+    // 没有缓存或者缓存损坏时返回 null
+    static List<Stmt> load(Path path) {
+        if (!Files.isRegularFile(path)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+            return new Reader(in).statements();
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    // 先写到临时文件再改名, 并发运行的进程不会读到写了一半的缓存
+    static void store(Path path, List<Stmt> statements) {
+        Path temp = null;
+        try {
+            Files.createDirectories(path.getParent());
+            temp = Files.createTempFile(path.getParent(), "lox", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                new Writer(out).statements(statements);
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            try {
+                if (temp != null) Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // 节点的标签, 0 表示 null
+    private static final int NULL = 0;
+
+    private static final int ASSIGN = 1;
+    private static final int BINARY = 2;
+    private static final int COMMA = 3;
+    private static final int TERNARY = 4;
+    private static final int GROUPING = 5;
+    private static final int LITERAL = 6;
+    private static final int LOGICAL = 7;
+    private static final int SET = 8;
+    private static final int SUPER = 9;
+    private static final int THIS = 10;
+    private static final int UNARY = 11;
+    private static final int CALL = 12;
+    private static final int GET = 13;
+    private static final int VARIABLE = 14;
+
+    private static final int BLOCK = 32;
+    private static final int CLASS = 33;
+    private static final int EXPRESSION = 34;
+    private static final int FUNCTION = 35;
+    private static final int IF = 36;
+    private static final int PRINT = 37;
+    private static final int RETURN = 38;
+    private static final int VAR = 39;
+    private static final int WHILE = 40;
+    private static final int BREAK = 41;
+    private static final int FOR = 42;
+
+    // 字面量的类型
+    private static final int NIL = 0;
+    private static final int TRUE = 1;
+    private static final int FALSE = 2;
+    private static final int NUMBER = 3;
+    private static final int STRING = 4;
+
+    // 只写入语法结构和 Resolver 回填的字段, 运行时的特化状态和缓存在读取时重新创建
+    private static class Writer implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+        private final DataOutputStream out;
+        // 同一个字符串只写一次, 之后写它的编号
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void statements(List<? extends Stmt> statements) {
+            write(statements.size());
+            for (Stmt statement : statements) {
+                statement(statement);
+            }
+        }
+
+        private void statement(Stmt stmt) {
+            if (stmt == null) {
+                write(NULL);
+            } else {
+                stmt.accept(this);
+            }
+        }
+
+        private void expression(Expr expr) {
+            if (expr == null) {
+                write(NULL);
+            } else {
+                expr.accept(this);
+            }
+        }
+
+        private void expressions(List<Expr> expressions) {
+            write(expressions.size());
+            for (Expr expr : expressions) {
+                expression(expr);
+            }
+        }
+
+        private void token(Token token) {
+            write(token.type.ordinal());
+            string(token.lexeme);
+            write(token.line);
+        }
+
+        private void string(String value) {
+            Integer index = strings.get(value);
+            if (index != null) {
+                write(index);
+                return;
+            }
+            write(strings.size());
+            strings.put(value, strings.size());
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            write(bytes.length);
+            try {
+                out.write(bytes);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        // 全局变量的 slot 是这个进程里的 Symbol.id, 换一个进程就不一样了, 不写入缓存
+        private void variable(int depth, int slot) {
+            write(depth);
+            if (depth != Resolver.GLOBAL) write(slot);
+        }
+
+        private void bool(boolean value) {
+            write(value ? 1 : 0);
+        }
+
+        // 整数用变长编码, 大多数标签, 下标和行号只占一两个字节
+        // 先做 zigzag 变换, depth 的 -1 也只占一个字节
+        private void write(int value) {
+            int bits = (value << 1) ^ (value >> 31);
+            try {
+                while ((bits & ~0x7f) != 0) {
+                    out.writeByte((bits & 0x7f) | 0x80);
+                    bits >>>= 7;
+                }
+                out.writeByte(bits);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            write(ASSIGN);
+            token(expr.name);
+            expression(expr.value);
+            variable(expr.depth, expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            write(BINARY);
+            expression(expr.left);
+            token(expr.operator);
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCommaExpr(Expr.Comma expr) {
+            write(COMMA);
+            expression(expr.left);
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitTernaryExpr(Expr.Ternary expr) {
+            write(TERNARY);
+            expression(expr.cond);
+            expression(expr.then);
+            expression(expr.elseThen);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            write(GROUPING);
+            expression(expr.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            write(LITERAL);
+            Object value = expr.value;
+            if (value == null) {
+                write(NIL);
+            } else if (value instanceof Boolean) {
+                write((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Double) {
+                write(NUMBER);
+                try {
+                    out.writeDouble((Double) value);
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            } else {
+                write(STRING);
+                string((String) value);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            write(LOGICAL);
+            expression(expr.left);
+            token(expr.operator);
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            write(SET);
+            expression(expr.object);
+            token(expr.name);
+            expression(expr.value);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            write(SUPER);
+            token(expr.keyword);
+            token(expr.method);
+            write(expr.depth);
+            write(expr.slot);
+            write(expr.thisDepth);
+            write(expr.thisSlot);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            write(THIS);
+            token(expr.keyword);
+            write(expr.depth);
+            write(expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            write(UNARY);
+            token(expr.operator);
+            expression(expr.right);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            write(CALL);
+            expression(expr.callee);
+            token(expr.paren);
+            expressions(expr.arguments);
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            write(GET);
+            expression(expr.object);
+            token(expr.name);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            write(VARIABLE);
+            token(expr.name);
+            variable(expr.depth, expr.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            write(BLOCK);
+            statements(stmt.statements);
+            write(stmt.slots);
+            write(stmt.base);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            write(CLASS);
+            token(stmt.name);
+            expression(stmt.superclass);
+            statements(stmt.methods);
+            statements(stmt.klassMethods);
+            write(stmt.slot);
+            write(stmt.superSlot);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            write(EXPRESSION);
+            expression(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            write(FUNCTION);
+            token(stmt.name);
+            write(stmt.params.size());
+            for (Token param : stmt.params) {
+                token(param);
+            }
+            statements(stmt.body);
+            bool(stmt.isGetter);
+            write(stmt.slots);
+            write(stmt.slot);
+            write(stmt.upvalues.length);
+            for (int capture : stmt.upvalues) {
+                write(capture);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            write(IF);
+            expression(stmt.condition);
+            statement(stmt.thenBranch);
+            statement(stmt.elseBranch);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            write(PRINT);
+            expression(stmt.expression);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            write(RETURN);
+            token(stmt.keyword);
+            expression(stmt.value);
+            bool(stmt.tail);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            write(VAR);
+            token(stmt.name);
+            expression(stmt.initializer);
+            write(stmt.slot);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            write(WHILE);
+            expression(stmt.condition);
+            statement(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitForStmt(Stmt.For stmt) {
+            write(FOR);
+            statement(stmt.initializer);
+            expression(stmt.condition);
+            expression(stmt.increment);
+            statement(stmt.body);
+            write(stmt.slots);
+            write(stmt.base);
+            return null;
+        }
+
+        @Override
+        public Void visitBreakStmt(Stmt.Break stmt) {
+            write(BREAK);
+            token(stmt.token);
+            return null;
+        }
+    }
+
+    // 按 Writer 的顺序读回语法树, 遇到不认识的标签说明文件损坏
+    private static class Reader {
+        private static final TokenType[] TYPES = TokenType.values();
+
+        private final DataInputStream in;
+        private final List<String> strings = new ArrayList<>();
+
+        Reader(DataInputStream in) {
+            this.in = in;
+        }
+
+        List<Stmt> statements() throws IOException {
+            int size = integer();
+            List<Stmt> statements = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                statements.add(statement());
+            }
+            return statements;
+        }
+
+        private List<Stmt.Function> functions() throws IOException {
+            int size = integer();
+            List<Stmt.Function> functions = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                functions.add((Stmt.Function) statement());
+            }
+            return functions;
+        }
+
+        private List<Expr> expressions() throws IOException {
+            int size = integer();
+            List<Expr> expressions = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                expressions.add(expression());
+            }
+            return expressions;
+        }
+
+        private int integer() throws IOException {
+            int bits = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = in.readUnsignedByte();
+                bits |= (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) return (bits >>> 1) ^ -(bits & 1);
+            }
+            throw new IOException("Malformed integer.");
+        }
+
+        private Token token() throws IOException {
+            TokenType type = TYPES[integer()];
+            String lexeme = string();
+            return new Token(type, lexeme, null, integer());
+        }
+
+        // 全局变量按名字在这个进程里重新取 slot, 和 Resolver 的做法一样
+        private int slot(int depth, Token name) throws IOException {
+            if (depth == Resolver.GLOBAL) return name.symbol.id;
+            return integer();
+        }
+
+        private String string() throws IOException {
+            int index = integer();
+            if (index < strings.size()) return strings.get(index);
+            byte[] bytes = new byte[integer()];
+            in.readFully(bytes);
+            String value = new String(bytes, StandardCharsets.UTF_8);
+            strings.add(value);
+            return value;
+        }
+
+        private Expr expression() throws IOException {
+            int tag = integer();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case ASSIGN: {
+                    Expr.Assign expr = new Expr.Assign(token(), expression());
+                    expr.depth = integer();
+                    expr.slot = slot(expr.depth, expr.name);
+                    return expr;
+                }
+                case BINARY:
+                    return new Expr.Binary(expression(), token(), expression());
+                case COMMA:
+                    return new Expr.Comma(expression(), expression());
+                case TERNARY:
+                    return new Expr.Ternary(expression(), expression(), expression());
+                case GROUPING:
+                    return new Expr.Grouping(expression());
+                case LITERAL:
+                    return new Expr.Literal(literal());
+                case LOGICAL:
+                    return new Expr.Logical(expression(), token(), expression());
+                case SET:
+                    return new Expr.Set(expression(), token(), expression());
+                case SUPER: {
+                    Expr.Super expr = new Expr.Super(token(), token());
+                    expr.depth = integer();
+                    expr.slot = integer();
+                    expr.thisDepth = integer();
+                    expr.thisSlot = integer();
+                    return expr;
+                }
+                case THIS: {
+                    Expr.This expr = new Expr.This(token());
+                    expr.depth = integer();
+                    expr.slot = integer();
+                    return expr;
+                }
+                case UNARY:
+                    return new Expr.Unary(token(), expression());
+                case CALL:
+                    return new Expr.Call(expression(), token(), expressions());
+                case GET:
+                    return new Expr.Get(expression(), token());
+                case VARIABLE: {
+                    Expr.Variable expr = new Expr.Variable(token());
+                    expr.depth = integer();
+                    expr.slot = slot(expr.depth, expr.name);
+                    return expr;
+                }
+                default:
+                    throw new IOException("Unknown expression tag " + tag + ".");
+            }
+        }
+
+        private Object literal() throws IOException {
+            int kind = integer();
+            switch (kind) {
+                case NIL: return null;
+                case TRUE: return true;
+                case FALSE: return false;
+                case NUMBER: return in.readDouble();
+                case STRING: return string();
+                default:
+                    throw new IOException("Unknown literal kind " + kind + ".");
+            }
+        }
+
+        private Stmt statement() throws IOException {
+            int tag = integer();
+            switch (tag) {
+                case NULL:
+                    return null;
+                case BLOCK: {
+                    Stmt.Block stmt = new Stmt.Block(statements());
+                    stmt.slots = integer();
+                    stmt.base = integer();
+                    return stmt;
+                }
+                case CLASS: {
+                    Stmt.Class stmt = new Stmt.Class(token(), (Expr.Variable) expression(), functions(), functions());
+                    stmt.slot = integer();
+                    stmt.superSlot = integer();
+                    return stmt;
+                }
+                case EXPRESSION:
+                    return new Stmt.Expression(expression());
+                case FUNCTION: {
+                    Token name = token();
+                    int size = integer();
+                    List<Token> params = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        params.add(token());
+                    }
+                    Stmt.Function stmt = new Stmt.Function(name, params, statements(), integer() != 0);
+                    stmt.slots = integer();
+                    stmt.slot = integer();
+                    stmt.upvalues = new int[integer()];
+                    for (int i = 0; i < stmt.upvalues.length; i++) {
+                        stmt.upvalues[i] = integer();
+                    }
+                    return stmt;
+                }
+                case IF:
+                    return new Stmt.If(expression(), statement(), statement());
+                case PRINT:
+                    return new Stmt.Print(expression());
+                case RETURN: {
+                    Stmt.Return stmt = new Stmt.Return(token(), expression());
+                    stmt.tail = integer() != 0;
+                    return stmt;
+                }
+                case VAR: {
+                    Stmt.Var stmt = new Stmt.Var(token(), expression());
+                    stmt.slot = integer();
+                    return stmt;
+                }
+                case WHILE:
+                    return new Stmt.While(expression(), statement());
+                case BREAK:
+                    return new Stmt.Break(token());
+                case FOR: {
+                    Stmt.For stmt = new Stmt.For(statement(), expression(), expression(), statement());
+                    stmt.slots = integer();
+                    stmt.base = integer();
+                    return stmt;
+                }
+                default:
+                    throw new IOException("Unknown statement tag " + tag + ".");
+            }
+        }
+    }
+}
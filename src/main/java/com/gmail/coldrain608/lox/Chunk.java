@@ -0,0 +1,41 @@
+package com.gmail.coldrain608.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// 一段字节码, 以及它的常量池和每条指令或操作数对应的行号
+// 指令和操作数各占一个 int, 下标和跳转目标都没有宽度限制, 执行时也不用拼字节
+class Chunk {
+    int[] code = new int[64];
+    int[] lines = new int[64];
+    int count = 0;
+    Object[] constants = new Object[8];
+    int constantCount = 0;
+    // 名字和字符串常量会反复出现, 复用已有的下标
+    private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+    void write(int word, int line) {
+        if (count == code.length) {
+            code = Arrays.copyOf(code, count * 2);
+            lines = Arrays.copyOf(lines, count * 2);
+        }
+        code[count] = word;
+        lines[count] = line;
+        count++;
+    }
+
+    int addConstant(Object value) {
+        boolean shared = value instanceof String || value instanceof Symbol;
+        if (shared) {
+            Integer index = constantIndex.get(value);
+            if (index != null) return index;
+        }
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+        if (shared) constantIndex.put(value, constantCount);
+        return constantCount++;
+    }
+}
@@ -0,0 +1,389 @@
+package com.gmail.coldrain608.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// 生成 JVM class 文件的最小实现, 只支持 Jit 用到的指令
+// 版本号用 49, 这样不需要生成 StackMapTable, 由 JVM 做类型推导校验
+class ClassWriter {
+
+    private static final int VERSION = 49;
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final int thisClass;
+    private final int superClass;
+    private final List<Integer> interfaces = new ArrayList<>();
+    private final List<byte[]> fields = new ArrayList<>();
+    private final List<byte[]> methods = new ArrayList<>();
+
+    ClassWriter(String name, String superName, String... interfaceNames) {
+        thisClass = classRef(name);
+        superClass = classRef(superName);
+        for (String interfaceName : interfaceNames) {
+            interfaces.add(classRef(interfaceName));
+        }
+    }
+
+    void field(int access, String name, String descriptor) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        fields.add(bytes.toByteArray());
+    }
+
+    Code method(int access, String name, String descriptor) {
+        return new Code(access, name, descriptor);
+    }
+
+    byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            out.write(poolBytes.toByteArray());
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.size());
+            for (int index : interfaces) out.writeShort(index);
+            out.writeShort(fields.size());
+            for (byte[] field : fields) out.write(field);
+            out.writeShort(methods.size());
+            for (byte[] method : methods) out.write(method);
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // 常量池
+
+    private int constant(String key, int tag, int a, int b, String utf) {
+        Integer index = poolIndex.get(key);
+        if (index != null) return index;
+        try {
+            pool.writeByte(tag);
+            if (utf != null) {
+                pool.writeUTF(utf);
+            } else if (b < 0) {
+                pool.writeShort(a);
+            } else {
+                pool.writeShort(a);
+                pool.writeShort(b);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+
+    // double 在常量池里占两项
+    private int doubleConstant(double value) {
+        String key = "D" + Double.doubleToRawLongBits(value);
+        Integer index = poolIndex.get(key);
+        if (index != null) return index;
+        try {
+            pool.writeByte(6);
+            pool.writeDouble(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        poolIndex.put(key, poolCount);
+        poolCount += 2;
+        return poolCount - 2;
+    }
+
+    private int utf8(String value) {
+        return constant("U" + value, 1, 0, 0, value);
+    }
+
+    private int classRef(String name) {
+        return constant("C" + name, 7, utf8(name), -1, null);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        return constant("N" + name + ":" + descriptor, 12, utf8(name), utf8(descriptor), null);
+    }
+
+    private int member(int tag, String owner, String name, String descriptor) {
+        return constant(tag + owner + "." + name + ":" + descriptor, tag,
+                classRef(owner), nameAndType(name, descriptor), null);
+    }
+
+    // 一个方法的字节码, 同时记录操作数栈的最大深度
+    class Code {
+        private final int access;
+        private final String name;
+        private final String descriptor;
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private int stack = 0;
+        private int maxStack = 0;
+        private int maxLocals;
+
+        private Code(int access, String name, String descriptor) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.maxLocals = argumentSlots(descriptor) + ((access & ACC_STATIC) != 0 ? 0 : 1);
+        }
+
+        int size() {
+            return code.size();
+        }
+
+        private void op(int opcode, int delta) {
+            code.write(opcode);
+            stack += delta;
+            if (stack > maxStack) maxStack = stack;
+        }
+
+        private void u1(int value) {
+            code.write(value);
+        }
+
+        private void u2(int value) {
+            code.write(value >> 8);
+            code.write(value);
+        }
+
+        private void local(int opcode, int index, int delta) {
+            int size = opcode == 0x18 || opcode == 0x39 ? 2 : 1;
+            if (index + size - 1 > 0xff) throw new IllegalStateException("Too many locals.");
+            if (index + size > maxLocals) maxLocals = index + size;
+            op(opcode, delta);
+            u1(index);
+        }
+
+        void aload(int index) { local(0x19, index, 1); }
+        void astore(int index) { local(0x3a, index, -1); }
+        void dload(int index) { local(0x18, index, 2); }
+        void dstore(int index) { local(0x39, index, -2); }
+        void aconstNull() { op(0x01, 1); }
+        void pop() { op(0x57, -1); }
+        void dup() { op(0x59, 1); }
+        void dup2() { op(0x5c, 2); }
+        void areturn() { op(0xb0, -1); }
+        void vreturn() { op(0xb1, 0); }
+        void aaload() { op(0x32, -1); }
+        void aastore() { op(0x53, -3); }
+        void dadd() { op(0x63, -2); }
+        void dsub() { op(0x67, -2); }
+        void dmul() { op(0x6b, -2); }
+        void dneg() { op(0x77, 0); }
+        void dcmpl() { op(0x97, -3); }
+        void dcmpg() { op(0x98, -3); }
+
+        void iconst(int value) {
+            if (value >= -1 && value <= 5) {
+                op(0x03 + value, 1);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(0x10, 1);
+                u1(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op(0x11, 1);
+                u2(value);
+            } else {
+                throw new IllegalStateException("Constant out of range.");
+            }
+        }
+
+        void ldcDouble(double value) {
+            if (Double.doubleToRawLongBits(value) == 0L) {
+                op(0x0e, 2);
+            } else if (value == 1) {
+                op(0x0f, 2);
+            } else {
+                op(0x14, 2);
+                u2(doubleConstant(value));
+            }
+        }
+
+        void ldcString(String value) {
+            ldc(constant("S" + value, 8, utf8(value), -1, null));
+        }
+
+        void ldcClass(String type) {
+            ldc(classRef(type));
+        }
+
+        private void ldc(int index) {
+            if (index > 0xff) {
+                op(0x13, 1);
+                u2(index);
+            } else {
+                op(0x12, 1);
+                u1(index);
+            }
+        }
+
+        void anewarray(String type) {
+            op(0xbd, 0);
+            u2(classRef(type));
+        }
+
+        void checkcast(String type) {
+            op(0xc0, 0);
+            u2(classRef(type));
+        }
+
+        void getstatic(String owner, String name, String descriptor) {
+            op(0xb2, 1);
+            u2(member(9, owner, name, descriptor));
+        }
+
+        void putstatic(String owner, String name, String descriptor) {
+            op(0xb3, -1);
+            u2(member(9, owner, name, descriptor));
+        }
+
+        void invokestatic(String owner, String name, String descriptor) {
+            op(0xb8, returnSlots(descriptor) - argumentSlots(descriptor));
+            u2(member(10, owner, name, descriptor));
+        }
+
+        void invokespecial(String owner, String name, String descriptor) {
+            op(0xb7, returnSlots(descriptor) - argumentSlots(descriptor) - 1);
+            u2(member(10, owner, name, descriptor));
+        }
+
+        void invokevirtual(String owner, String name, String descriptor) {
+            op(0xb6, returnSlots(descriptor) - argumentSlots(descriptor) - 1);
+            u2(member(10, owner, name, descriptor));
+        }
+
+        void invokeinterface(String owner, String name, String descriptor) {
+            int args = argumentSlots(descriptor);
+            op(0xb9, returnSlots(descriptor) - args - 1);
+            u2(member(11, owner, name, descriptor));
+            u1(args + 1);
+            u1(0);
+        }
+
+        Label label() {
+            return new Label();
+        }
+
+        void mark(Label label) {
+            label.position = code.size();
+        }
+
+        void ifeq(Label label) { jump(0x99, label, -1); }
+        void ifne(Label label) { jump(0x9a, label, -1); }
+        void iflt(Label label) { jump(0x9b, label, -1); }
+        void ifge(Label label) { jump(0x9c, label, -1); }
+        void ifgt(Label label) { jump(0x9d, label, -1); }
+        void ifle(Label label) { jump(0x9e, label, -1); }
+        void ifnonnull(Label label) { jump(0xc7, label, -1); }
+        void goto_(Label label) { jump(0xa7, label, 0); }
+
+        private void jump(int opcode, Label label, int delta) {
+            int at = code.size();
+            op(opcode, delta);
+            label.uses.add(at);
+            u2(0);
+        }
+
+        // 跳转之后的代码从栈深度 depth 继续, goto 和 return 之后需要手动设置
+        void stack(int depth) {
+            stack = depth;
+        }
+
+        int stack() {
+            return stack;
+        }
+
+        void end() {
+            byte[] bytes = code.toByteArray();
+            if (bytes.length >= 0xffff) throw new IllegalStateException("Method too large.");
+            for (Label label : labels) {
+                for (int at : label.uses) {
+                    int offset = label.position - at;
+                    if (offset > Short.MAX_VALUE || offset < Short.MIN_VALUE) {
+                        throw new IllegalStateException("Jump too far.");
+                    }
+                    bytes[at + 1] = (byte) (offset >> 8);
+                    bytes[at + 2] = (byte) offset;
+                }
+            }
+
+            ByteArrayOutputStream method = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(method);
+            try {
+                out.writeShort(access);
+                out.writeShort(utf8(name));
+                out.writeShort(utf8(descriptor));
+                out.writeShort(1);
+                out.writeShort(utf8("Code"));
+                out.writeInt(12 + bytes.length);
+                out.writeShort(maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                out.writeShort(0);
+                out.writeShort(0);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            methods.add(method.toByteArray());
+        }
+
+        private final List<Label> labels = new ArrayList<>();
+
+        class Label {
+            private int position = -1;
+            private final List<Integer> uses = new ArrayList<>();
+
+            private Label() {
+                labels.add(this);
+            }
+        }
+    }
+
+    // long 和 double 占两个 slot, 其他类型占一个
+    private static int argumentSlots(String descriptor) {
+        int slots = 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            char c = descriptor.charAt(i);
+            while (c == '[') c = descriptor.charAt(++i);
+            if (c == 'L') i = descriptor.indexOf(';', i);
+            if (c == 'J' || c == 'D') slots++;
+            slots++;
+            i++;
+        }
+        return slots;
+    }
+
+    private static int returnSlots(String descriptor) {
+        char c = descriptor.charAt(descriptor.indexOf(')') + 1);
+        if (c == 'V') return 0;
+        if (c == 'J' || c == 'D') return 2;
+        return 1;
+    }
+}
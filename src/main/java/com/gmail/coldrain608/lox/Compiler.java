@@ -0,0 +1,703 @@
+package com.gmail.coldrain608.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// 把经过 Resolver 检查的 AST 编译成字节码, 由 VM 执行
+// 局部变量放在 VM 的栈上, 被闭包捕获的变量通过 upvalue 访问
+// 变量的 (depth, slot) 和函数捕获的 upvalue 都用 Resolver 的结果, 这里不再按名字查找
+class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    private enum FunctionType {
+        SCRIPT,
+        FUNCTION,
+        METHOD,
+        INITIALIZER
+    }
+
+    // 栈上的局部变量, 下标就是它的 slot, 只用来在离开作用域时弹出或关闭
+    private static class Local {
+        final int depth;
+        boolean isCaptured = false;
+
+        Local(int depth) {
+            this.depth = depth;
+        }
+    }
+
+    private static class Loop {
+        final Loop enclosing;
+        final int scopeDepth;
+        final List<Integer> breaks = new ArrayList<>();
+
+        Loop(Loop enclosing, int scopeDepth) {
+            this.enclosing = enclosing;
+            this.scopeDepth = scopeDepth;
+        }
+    }
+
+    private static class FunctionState {
+        final FunctionState enclosing;
+        final Obj.Function function;
+        final FunctionType type;
+        final List<Local> locals = new ArrayList<>();
+        // Resolver 给最外层的 Block 和 for 单独的帧, slot 从 0 开始;
+        // VM 里它们放在脚本的帧里, slot 0 已经是脚本本身, 所以往后挪一格
+        final int offset;
+        int scopeDepth = 0;
+        Loop loop;
+
+        FunctionState(FunctionState enclosing, Obj.Function function, FunctionType type) {
+            this.enclosing = enclosing;
+            this.function = function;
+            this.type = type;
+            this.offset = type == FunctionType.SCRIPT ? 1 : 0;
+        }
+    }
+
+    private final VM vm;
+    private FunctionState current;
+    private int line = 1;
+
+    Compiler(VM vm) {
+        this.vm = vm;
+    }
+
+    Obj.Function compile(List<Stmt> statements) {
+        current = new FunctionState(null, new Obj.Function(null), FunctionType.SCRIPT);
+        // slot 0 留给正在执行的函数本身
+        current.locals.add(new Local(0));
+        for (Stmt statement : statements) {
+            compile(statement);
+        }
+        emitReturn();
+        return current.function;
+    }
+
+    private void compile(Stmt stmt) {
+        stmt.accept(this);
+    }
+
+    private void compile(Expr expr) {
+        expr.accept(this);
+    }
+
+    // 语句
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        beginScope();
+        for (Stmt statement : stmt.statements) {
+            compile(statement);
+        }
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        line = stmt.name.line;
+        declareVariable();
+        emitOp(OpCode.CLASS);
+        emitOperand(identifierConstant(stmt.name.symbol));
+        defineVariable(stmt.name.symbol);
+        // 类声明在当前的帧里, 或者是全局变量
+        int depth = stmt.slot == -1 ? Resolver.GLOBAL : Resolver.LOCAL;
+
+        if (stmt.superclass != null) {
+            compile(stmt.superclass);
+            beginScope();
+            addLocal();
+            variable(depth, stmt.slot, stmt.name.symbol, false);
+            line = stmt.superclass.name.line;
+            emitOp(OpCode.INHERIT);
+        }
+
+        variable(depth, stmt.slot, stmt.name.symbol, false);
+        for (Stmt.Function method : stmt.methods) {
+            FunctionType type = method.name.symbol == Symbol.INIT
+                    ? FunctionType.INITIALIZER : FunctionType.METHOD;
+            function(method, type);
+            emitOp(OpCode.METHOD);
+            emitOperand(identifierConstant(method.name.symbol));
+        }
+        for (Stmt.Function method : stmt.klassMethods) {
+            FunctionType type = method.name.symbol == Symbol.INIT
+                    ? FunctionType.INITIALIZER : FunctionType.METHOD;
+            function(method, type);
+            emitOp(OpCode.CLASS_METHOD);
+            emitOperand(identifierConstant(method.name.symbol));
+        }
+        emitOp(OpCode.POP);
+
+        if (stmt.superclass != null) endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        discard(stmt.expression);
+        return null;
+    }
+
+    // 求值之后不需要结果, 给局部变量赋值时直接用 SET_LOCAL_POP
+    private void discard(Expr expr) {
+        if (expr instanceof Expr.Assign && ((Expr.Assign) expr).depth == Resolver.LOCAL) {
+            Expr.Assign assign = (Expr.Assign) expr;
+            compile(assign.value);
+            line = assign.name.line;
+            emitOp(OpCode.SET_LOCAL_POP);
+            emitOperand(assign.slot + current.offset);
+            return;
+        }
+        compile(expr);
+        emitOp(OpCode.POP);
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        line = stmt.name.line;
+        // 先声明再编译函数体, 函数体里可以递归引用自己
+        declareVariable();
+        function(stmt, FunctionType.FUNCTION);
+        defineVariable(stmt.name.symbol);
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        compile(stmt.condition);
+        int thenJump = emitJump(OpCode.POP_JUMP_IF_FALSE);
+        compile(stmt.thenBranch);
+        if (stmt.elseBranch == null) {
+            patchJump(thenJump);
+            return null;
+        }
+        int elseJump = emitJump(OpCode.JUMP);
+        patchJump(thenJump);
+        compile(stmt.elseBranch);
+        patchJump(elseJump);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        compile(stmt.expression);
+        emitOp(OpCode.PRINT);
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        line = stmt.keyword.line;
+        if (stmt.value == null || current.type == FunctionType.INITIALIZER) {
+            emitReturn();
+        } else if (stmt.tail) {
+            call((Expr.Call) stmt.value, true);
+            line = stmt.keyword.line;
+            emitOp(OpCode.RETURN);
+        } else {
+            compile(stmt.value);
+            line = stmt.keyword.line;
+            emitOp(OpCode.RETURN);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        line = stmt.name.line;
+        declareVariable();
+        if (stmt.initializer != null) {
+            compile(stmt.initializer);
+        } else {
+            emitOp(OpCode.NIL);
+        }
+        line = stmt.name.line;
+        defineVariable(stmt.name.symbol);
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        int loopStart = current.function.chunk.count;
+        compile(stmt.condition);
+        int exitJump = emitJump(OpCode.POP_JUMP_IF_FALSE);
+
+        current.loop = new Loop(current.loop, current.scopeDepth);
+        compile(stmt.body);
+        emitLoop(loopStart);
+
+        patchJump(exitJump);
+        // break 跳过来时条件已经弹出了
+        for (int jump : current.loop.breaks) {
+            patchJump(jump);
+        }
+        current.loop = current.loop.enclosing;
+        return null;
+    }
+
+    // 循环变量在 for 自己的作用域里, 条件和增量都可以省略
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        beginScope();
+        if (stmt.initializer != null) compile(stmt.initializer);
+
+        int loopStart = current.function.chunk.count;
+        int exitJump = -1;
+        if (stmt.condition != null) {
+            compile(stmt.condition);
+            exitJump = emitJump(OpCode.POP_JUMP_IF_FALSE);
+        }
+
+        current.loop = new Loop(current.loop, current.scopeDepth);
+        compile(stmt.body);
+        if (stmt.increment != null) discard(stmt.increment);
+        emitLoop(loopStart);
+
+        if (exitJump != -1) patchJump(exitJump);
+        // break 跳过来时条件已经弹出了
+        for (int jump : current.loop.breaks) {
+            patchJump(jump);
+        }
+        current.loop = current.loop.enclosing;
+        endScope();
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        line = stmt.token.line;
+        if (current.loop == null) {
+            Lox.error(stmt.token, "Can't break outside of a loop.");
+            return null;
+        }
+        // 丢掉循环体里声明的局部变量, 但不改变编译期的作用域
+        // 变量可能在 break 之后才被闭包捕获, 这里还不知道, 所以一律关闭 upvalue
+        for (int i = current.locals.size() - 1;
+             i >= 0 && current.locals.get(i).depth > current.loop.scopeDepth; i--) {
+            emitOp(OpCode.CLOSE_UPVALUE);
+        }
+        current.loop.breaks.add(emitJump(OpCode.JUMP));
+        return null;
+    }
+
+    // 表达式
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        compile(expr.value);
+        line = expr.name.line;
+        variable(expr.depth, expr.slot, expr.name.symbol, true);
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        if (fuseBinary(expr)) return null;
+        compile(expr.left);
+        compile(expr.right);
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case BANG_EQUAL: emitOp(OpCode.NOT_EQUAL); break;
+            case EQUAL_EQUAL: emitOp(OpCode.EQUAL); break;
+            case GREATER: emitOp(OpCode.GREATER); break;
+            case GREATER_EQUAL: emitOp(OpCode.GREATER_EQUAL); break;
+            case LESS: emitOp(OpCode.LESS); break;
+            case LESS_EQUAL: emitOp(OpCode.LESS_EQUAL); break;
+            case PLUS: emitOp(OpCode.ADD); break;
+            case MINUS: emitOp(OpCode.SUBTRACT); break;
+            case STAR: emitOp(OpCode.MULTIPLY); break;
+            case SLASH: emitOp(OpCode.DIVIDE); break;
+        }
+        return null;
+    }
+
+    // 左边是局部变量, 右边是局部变量或数字字面量时两边都没有副作用, 合成一条指令
+    // 数字字面量在左边的比较交换两边, 换成对应的比较
+    private boolean fuseBinary(Expr.Binary expr) {
+        TokenType type = expr.operator.type;
+        Expr left = expr.left;
+        Expr right = expr.right;
+        if (isNumber(left) && localSlot(right) != -1) {
+            switch (type) {
+                case GREATER: type = TokenType.LESS; break;
+                case GREATER_EQUAL: type = TokenType.LESS_EQUAL; break;
+                case LESS: type = TokenType.GREATER; break;
+                case LESS_EQUAL: type = TokenType.GREATER_EQUAL; break;
+                default: return false;
+            }
+            left = expr.right;
+            right = expr.left;
+        }
+
+        int slot = localSlot(left);
+        if (slot == -1) return false;
+        int op = -1;
+        int operand = -1;
+        if (isNumber(right)) {
+            switch (type) {
+                case PLUS: op = OpCode.ADD_LOCAL_NUMBER; break;
+                case MINUS: op = OpCode.SUBTRACT_LOCAL_NUMBER; break;
+                case STAR: op = OpCode.MULTIPLY_LOCAL_NUMBER; break;
+                case GREATER: op = OpCode.GREATER_LOCAL_NUMBER; break;
+                case GREATER_EQUAL: op = OpCode.GREATER_EQUAL_LOCAL_NUMBER; break;
+                case LESS: op = OpCode.LESS_LOCAL_NUMBER; break;
+                case LESS_EQUAL: op = OpCode.LESS_EQUAL_LOCAL_NUMBER; break;
+            }
+        } else if ((operand = localSlot(right)) != -1) {
+            // 局部变量之间的 > 和 >= 交换两边, 和 < 与 <= 共用指令
+            switch (type) {
+                case PLUS: op = OpCode.ADD_LOCAL_LOCAL; break;
+                case MINUS: op = OpCode.SUBTRACT_LOCAL_LOCAL; break;
+                case STAR: op = OpCode.MULTIPLY_LOCAL_LOCAL; break;
+                case LESS: op = OpCode.LESS_LOCAL_LOCAL; break;
+                case LESS_EQUAL: op = OpCode.LESS_EQUAL_LOCAL_LOCAL; break;
+                case GREATER:
+                    op = OpCode.LESS_LOCAL_LOCAL;
+                    operand = slot;
+                    slot = localSlot(right);
+                    break;
+                case GREATER_EQUAL:
+                    op = OpCode.LESS_EQUAL_LOCAL_LOCAL;
+                    operand = slot;
+                    slot = localSlot(right);
+                    break;
+            }
+        }
+        if (op == -1) return false;
+
+        line = expr.operator.line;
+        emitOp(op);
+        emitOperand(slot);
+        if (operand == -1) {
+            emitNumber((double) ((Expr.Literal) right).value);
+        } else {
+            emitOperand(operand);
+        }
+        return true;
+    }
+
+    private static boolean isNumber(Expr expr) {
+        return expr instanceof Expr.Literal && ((Expr.Literal) expr).value instanceof Double;
+    }
+
+    private int localSlot(Expr expr) {
+        if (!(expr instanceof Expr.Variable)) return -1;
+        Expr.Variable variable = (Expr.Variable) expr;
+        return variable.depth == Resolver.LOCAL ? variable.slot + current.offset : -1;
+    }
+
+    @Override
+    public Void visitCommaExpr(Expr.Comma expr) {
+        compile(expr.left);
+        emitOp(OpCode.POP);
+        compile(expr.right);
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        compile(expr.cond);
+        int elseJump = emitJump(OpCode.POP_JUMP_IF_FALSE);
+        compile(expr.then);
+        int endJump = emitJump(OpCode.JUMP);
+        patchJump(elseJump);
+        compile(expr.elseThen);
+        patchJump(endJump);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        compile(expr.expression);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            emitOp(OpCode.NIL);
+        } else if (expr.value.equals(true)) {
+            emitOp(OpCode.TRUE);
+        } else if (expr.value.equals(false)) {
+            emitOp(OpCode.FALSE);
+        } else {
+            emitConstant(expr.value);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        compile(expr.left);
+        if (expr.operator.type == TokenType.OR) {
+            int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+            int endJump = emitJump(OpCode.JUMP);
+            patchJump(elseJump);
+            emitOp(OpCode.POP);
+            compile(expr.right);
+            patchJump(endJump);
+        } else {
+            int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+            emitOp(OpCode.POP);
+            compile(expr.right);
+            patchJump(endJump);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        compile(expr.object);
+        compile(expr.value);
+        line = expr.name.line;
+        emitOp(OpCode.SET_PROPERTY);
+        emitOperand(identifierConstant(expr.name.symbol));
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        line = expr.keyword.line;
+        variable(expr.thisDepth, expr.thisSlot, Symbol.THIS, false);
+        variable(expr.depth, expr.slot, Symbol.SUPER, false);
+        line = expr.method.line;
+        emitOp(OpCode.GET_SUPER);
+        emitOperand(identifierConstant(expr.method.symbol));
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        line = expr.keyword.line;
+        variable(expr.depth, expr.slot, Symbol.THIS, false);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        compile(expr.right);
+        line = expr.operator.line;
+        switch (expr.operator.type) {
+            case BANG: emitOp(OpCode.NOT); break;
+            case MINUS: emitOp(OpCode.NEGATE); break;
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        call(expr, false);
+        return null;
+    }
+
+    // 尾调用换成 TAIL_ 开头的指令, 其余和普通调用相同
+    private void call(Expr.Call expr, boolean tail) {
+        // obj.method(args) 和 super.method(args) 不创建 bound method, 直接调用
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            compile(get.object);
+            int name = identifierConstant(get.name.symbol);
+            compileArguments(expr.arguments);
+            line = expr.paren.line;
+            emitOp(tail ? OpCode.TAIL_INVOKE : OpCode.INVOKE);
+            emitOperand(name);
+            emitOperand(expr.arguments.size());
+            return;
+        }
+        if (expr.callee instanceof Expr.Super) {
+            Expr.Super sup = (Expr.Super) expr.callee;
+            line = sup.keyword.line;
+            variable(sup.thisDepth, sup.thisSlot, Symbol.THIS, false);
+            int name = identifierConstant(sup.method.symbol);
+            compileArguments(expr.arguments);
+            variable(sup.depth, sup.slot, Symbol.SUPER, false);
+            line = expr.paren.line;
+            emitOp(tail ? OpCode.TAIL_SUPER_INVOKE : OpCode.SUPER_INVOKE);
+            emitOperand(name);
+            emitOperand(expr.arguments.size());
+            return;
+        }
+
+        compile(expr.callee);
+        compileArguments(expr.arguments);
+        line = expr.paren.line;
+        emitOp(tail ? OpCode.TAIL_CALL : OpCode.CALL);
+        emitOperand(expr.arguments.size());
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        compile(expr.object);
+        line = expr.name.line;
+        emitOp(OpCode.GET_PROPERTY);
+        emitOperand(identifierConstant(expr.name.symbol));
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        line = expr.name.line;
+        variable(expr.depth, expr.slot, expr.name.symbol, false);
+        return null;
+    }
+
+    // 函数
+
+    private void function(Stmt.Function stmt, FunctionType type) {
+        Obj.Function function = new Obj.Function(stmt.name.lexeme);
+        function.arity = stmt.params.size();
+        function.isGetter = stmt.isGetter;
+        current = new FunctionState(current, function, type);
+        // slot 0 是方法的 this, 普通函数的 slot 0 放函数本身
+        current.locals.add(new Local(0));
+
+        beginScope();
+        for (int i = 0; i < stmt.params.size(); i++) {
+            declareVariable();
+        }
+        for (Stmt statement : stmt.body) {
+            compile(statement);
+        }
+        emitReturn();
+        // 不需要 endScope, RETURN 会丢掉整个帧并关闭 upvalue
+
+        current = current.enclosing;
+        function.upvalueCount = stmt.upvalues.length;
+        line = stmt.name.line;
+        emitOp(OpCode.CLOSURE);
+        emitOperand(makeConstant(function));
+        // Resolver 记下的捕获: 外层帧的 slot, 或者 ~外层函数的 upvalue 下标
+        for (int capture : stmt.upvalues) {
+            if (capture >= 0) {
+                int slot = capture + current.offset;
+                current.locals.get(slot).isCaptured = true;
+                emitOperand(1);
+                emitOperand(slot);
+            } else {
+                emitOperand(0);
+                emitOperand(~capture);
+            }
+        }
+    }
+
+    private void compileArguments(List<Expr> arguments) {
+        for (Expr argument : arguments) {
+            compile(argument);
+        }
+    }
+
+    // 变量
+
+    private void beginScope() {
+        current.scopeDepth++;
+    }
+
+    private void endScope() {
+        current.scopeDepth--;
+        List<Local> locals = current.locals;
+        while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+            Local local = locals.remove(locals.size() - 1);
+            emitOp(local.isCaptured ? OpCode.CLOSE_UPVALUE : OpCode.POP);
+        }
+    }
+
+    private void declareVariable() {
+        if (current.scopeDepth == 0) return;
+        addLocal();
+    }
+
+    // 值已经在栈顶, 位置正好是 Resolver 分配的 slot
+    private void addLocal() {
+        current.locals.add(new Local(current.scopeDepth));
+    }
+
+    private void defineVariable(Symbol name) {
+        if (current.scopeDepth > 0) return;
+        emitOp(OpCode.DEFINE_GLOBAL);
+        emitOperand(globalSlot(name));
+    }
+
+    private void variable(int depth, int slot, Symbol name, boolean assign) {
+        if (depth == Resolver.LOCAL) {
+            emitOp(assign ? OpCode.SET_LOCAL : OpCode.GET_LOCAL);
+            emitOperand(slot + current.offset);
+        } else if (depth == Resolver.UPVALUE) {
+            emitOp(assign ? OpCode.SET_UPVALUE : OpCode.GET_UPVALUE);
+            emitOperand(slot);
+        } else {
+            emitOp(assign ? OpCode.SET_GLOBAL : OpCode.GET_GLOBAL);
+            emitOperand(globalSlot(name));
+        }
+    }
+
+    // 写字节码
+
+    private Chunk chunk() {
+        return current.function.chunk;
+    }
+
+    private void emitOp(int op) {
+        chunk().write(op, line);
+    }
+
+    private void emitOperand(int operand) {
+        chunk().write(operand, line);
+    }
+
+    private void emitReturn() {
+        if (current.type == FunctionType.INITIALIZER) {
+            emitOp(OpCode.GET_LOCAL);
+            emitOperand(0);
+        } else {
+            emitOp(OpCode.NIL);
+        }
+        emitOp(OpCode.RETURN);
+    }
+
+    private void emitConstant(Object value) {
+        if (value instanceof Double) {
+            emitOp(OpCode.NUMBER);
+            emitNumber((double) value);
+            return;
+        }
+        emitOp(OpCode.CONSTANT);
+        emitOperand(makeConstant(value));
+    }
+
+    // 数字直接放在指令里, VM 不需要从常量池取出再拆箱
+    private void emitNumber(double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        emitOperand((int) (bits >>> 32));
+        emitOperand((int) bits);
+    }
+
+    private int makeConstant(Object value) {
+        return chunk().addConstant(value);
+    }
+
+    private int identifierConstant(Symbol name) {
+        return makeConstant(name);
+    }
+
+    private int globalSlot(Symbol name) {
+        return vm.globalSlot(name);
+    }
+
+    // 跳转的操作数是目标位置, 向前跳的先占位, 目标确定之后再回填
+    private int emitJump(int op) {
+        emitOp(op);
+        emitOperand(-1);
+        return chunk().count - 1;
+    }
+
+    private void patchJump(int offset) {
+        chunk().code[offset] = chunk().count;
+    }
+
+    private void emitLoop(int loopStart) {
+        emitOp(OpCode.LOOP);
+        emitOperand(loopStart);
+    }
+}
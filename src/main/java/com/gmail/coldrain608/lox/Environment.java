@@ -1,69 +1,62 @@
 package com.gmail.coldrain608.lox;
 
-import java.util.*;
+import java.util.Arrays;
 
 public class Environment {
 
-    public final Environment enclosing;
-    private final List<VariableEntry> values = new ArrayList<>();
-
-    static class VariableEntry {
-        String key;
-        Object var;
-
-        VariableEntry(String key, Object var) {
-            this.key = key;
-            this.var = var;
-        }
-    }
+    // 局部作用域的变量由 Resolver 解析成 slot, 帧的大小在 resolve 时就确定了
+    // 一个函数调用只有一个帧, 函数外层的变量通过 upvalue 访问, 帧之间不再互相引用
+    private Object[] values;
+    // 局部变量可以不装箱直接存 double, 这时 values 里放 UNBOXED, 值在 doubles 的同一个下标
+    // doubles 在第一次存入 double 时才创建, 不做数值运算的帧不会多分配
+    private static final Object UNBOXED = new Object();
+    private double[] doubles;
+    // 全局变量以 Symbol.id 为 slot, 定义之前是 UNDEFINED, 所以可以先引用后定义, 也可以重复定义
+    private static final Object UNDEFINED = new Object();
+    // 指向这个帧里的变量, 还没有关闭的 upvalue, 按 slot 从高到低排列
+    private Upvalue openUpvalues;
 
     public Environment() {
-        enclosing = null;
+        values = new Object[64];
+        Arrays.fill(values, UNDEFINED);
     }
 
-    public Environment(Environment enclosing) {
-        this.enclosing = enclosing;
+    public Environment(int size) {
+        this.values = new Object[size];
     }
 
-    // 新增部分开始
-    Object get(Token name) {
-        Optional<VariableEntry> opt = values.stream()
-                .filter(entry -> entry.key.equals(name.lexeme)).findFirst();
-        if (opt.isPresent()) {
-            return opt.get().var;
-        }
+    // 直接使用调用方已经填好参数的数组作为帧
+    Environment(Object[] values) {
+        this.values = values;
+    }
 
-        if (enclosing != null) {
-            return enclosing.get(name);
+    Object getGlobal(int slot, Token name) {
+        if (slot < values.length) {
+            Object value = values[slot];
+            if (value != UNDEFINED) return value;
         }
 
         throw new RuntimeError(name,
                 "Undefined variable '" + name.lexeme + "'.");
     }
 
-    Object getAt(int distance, String name) {
-        return ancestor(distance).values.stream()
-                .filter(entry -> entry.key.equals(name))
-                .findFirst()
-                .orElseThrow(() -> new RuntimeError(null,
-                        "Undefined variable '" + name + "'."))
-                .var;
+    Object getAt(int slot) {
+        Object value = values[slot];
+        if (value == UNBOXED) return doubles[slot];
+        return value;
     }
 
-    Object getAt(int distance, int idx) {
-        return ancestor(distance).values.get(idx).var;
+    // slot 里的值不是数字时返回 Interpreter.NOT_A_DOUBLE
+    double getDoubleAt(int slot) {
+        Object value = values[slot];
+        if (value == UNBOXED) return doubles[slot];
+        if (value instanceof Double) return (double) value;
+        return Interpreter.NOT_A_DOUBLE;
     }
 
-    void assign(Token name, Object value) {
-        Optional<VariableEntry> opt = values.stream()
-                .filter(entry -> entry.key.equals(name.lexeme)).findFirst();
-        if (opt.isPresent()) {
-            opt.get().var = value;
-            return;
-        }
-
-        if (enclosing != null) {
-            enclosing.assign(name, value);
+    void assignGlobal(int slot, Token name, Object value) {
+        if (slot < values.length && values[slot] != UNDEFINED) {
+            values[slot] = value;
             return;
         }
 
@@ -71,22 +64,57 @@ public class Environment {
                 "Undefined variable '" + name.lexeme + "'.");
     }
 
-    void assignAt(int distance, Token name, int idx, Object value) {
-        Environment ancestor = ancestor(distance);
-        ancestor.values.set(idx, new VariableEntry(name.lexeme, value));
+    void assignAt(int slot, Object value) {
+        values[slot] = value;
     }
 
-    public void define(String name, Object value) {
-        values.add(new VariableEntry(name, value));
+    void assignDoubleAt(int slot, double value) {
+        if (doubles == null) {
+            doubles = new double[values.length];
+        }
+        doubles[slot] = value;
+        values[slot] = UNBOXED;
     }
 
-    Environment ancestor(int distance) {
-        Environment environment = this;
-        for (int i = 0; i < distance; i++) {
-            environment = environment.enclosing;
+    public void define(Symbol name, Object value) {
+        if (name.id >= values.length) {
+            int length = values.length;
+            values = Arrays.copyOf(values, Math.max(length * 2, name.id + 1));
+            Arrays.fill(values, length, values.length, UNDEFINED);
+        }
+        values[name.id] = value;
+    }
+
+    // 同一个变量只创建一个 upvalue, 捕获它的闭包共享读写
+    Upvalue capture(int slot) {
+        Upvalue prev = null;
+        Upvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.slot > slot) {
+            prev = upvalue;
+            upvalue = upvalue.next;
+        }
+        if (upvalue != null && upvalue.slot == slot) {
+            return upvalue;
         }
 
-        return environment;
+        Upvalue created = new Upvalue(this, slot);
+        created.next = upvalue;
+        if (prev == null) {
+            openUpvalues = created;
+        } else {
+            prev.next = created;
+        }
+        return created;
+    }
+
+    // 作用域结束时关闭 slot 不小于 first 的 upvalue, 这些 slot 之后会被别的变量复用
+    void closeUpvalues(int first) {
+        while (openUpvalues != null && openUpvalues.slot >= first) {
+            Upvalue upvalue = openUpvalues;
+            upvalue.close();
+            openUpvalues = upvalue.next;
+            upvalue.next = null;
+        }
     }
 
 }
@@ -32,6 +32,8 @@ public abstract class Expr {
 
    public final Token name;
    public final Expr value;
+   public int depth = -1;
+   public int slot;
   }
   public static class Binary extends Expr {
     Binary(Expr left, Token operator, Expr right) {
@@ -48,6 +50,7 @@ public abstract class Expr {
    public final Expr left;
    public final Token operator;
    public final Expr right;
+   public int specialized;
   }
   public static class Comma extends Expr {
     Comma(Expr left, Expr right) {
@@ -134,6 +137,7 @@ public abstract class Expr {
    public final Expr object;
    public final Token name;
    public final Expr value;
+   public InlineCache cache = new InlineCache();
   }
   public static class Super extends Expr {
     Super(Token keyword, Token method) {
@@ -148,6 +152,10 @@ public abstract class Expr {
 
    public final Token keyword;
    public final Token method;
+   public int depth = -1;
+   public int slot;
+   public int thisDepth = -1;
+   public int thisSlot;
   }
   public static class This extends Expr {
     This(Token keyword) {
@@ -160,6 +168,8 @@ public abstract class Expr {
     }
 
    public final Token keyword;
+   public int depth = -1;
+   public int slot;
   }
   public static class Unary extends Expr {
     Unary(Token operator, Expr right) {
@@ -190,6 +200,7 @@ public abstract class Expr {
    public final Expr callee;
    public final Token paren;
    public final List<Expr> arguments;
+   public int specialized;
   }
   public static class Get extends Expr {
     Get(Expr object, Token name) {
@@ -204,6 +215,7 @@ public abstract class Expr {
 
    public final Expr object;
    public final Token name;
+   public InlineCache cache = new InlineCache();
   }
   public static class Variable extends Expr {
     Variable(Token name) {
@@ -216,6 +228,8 @@ public abstract class Expr {
     }
 
    public final Token name;
+   public int depth = -1;
+   public int slot;
   }
 
   public abstract <R> R accept(Visitor<R> visitor);
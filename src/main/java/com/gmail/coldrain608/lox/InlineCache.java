@@ -0,0 +1,55 @@
+package com.gmail.coldrain608.lox;
+
+// 属性访问的内联缓存
+// 方法以接收者的 LoxClass 为键, 类创建之后方法表不会再变, 所以不需要失效,
+// 最多记住 SIZE 个类, 再有新的类就不再缓存, 直接查找
+// 字段以实例的 Shape 为键, 只记住最近一次的 slot, Set 还会记住添加字段后的 Shape
+// 一个缓存只属于一个 Get 或 Set 节点, 两种用法不会混在一起
+final class InlineCache {
+    private static final int SIZE = 4;
+
+    private final LoxClass[] classes = new LoxClass[SIZE];
+    private final LoxFunction[] methods = new LoxFunction[SIZE];
+    private int count = 0;
+
+    private Shape shape;
+    private Shape next;
+    private int slot;
+
+    LoxFunction findMethod(LoxClass klass, Symbol name) {
+        for (int i = 0; i < count; i++) {
+            if (classes[i] == klass) return methods[i];
+        }
+        LoxFunction method = klass.findMethod(name);
+        if (count < SIZE) {
+            classes[count] = klass;
+            methods[count] = method;
+            count++;
+        }
+        return method;
+    }
+
+    // 没有这个字段时返回 -1
+    int fieldSlot(Shape shape, Symbol name) {
+        if (shape != this.shape) {
+            this.shape = shape;
+            this.slot = shape.slot(name);
+        }
+        return slot;
+    }
+
+    void setField(LoxInstance instance, Symbol name, Object value) {
+        Shape shape = instance.getShape();
+        if (shape != this.shape) {
+            this.shape = shape;
+            this.slot = shape.slot(name);
+            if (slot >= 0) {
+                next = shape;
+            } else {
+                next = shape.add(name);
+                slot = shape.size();
+            }
+        }
+        instance.setField(next, slot, value);
+    }
+}
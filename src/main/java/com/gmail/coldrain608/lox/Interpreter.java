@@ -1,60 +1,265 @@
 package com.gmail.coldrain608.lox;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Interpreter.Completion> {
+
+    // 语句执行完之后的去向, 由 executeBlock 和循环逐层向外传递
+    // return 的返回值放在 returnValue 里, 由 LoxFunction 取走
+    enum Completion {
+        NORMAL,
+        RETURN,
+        BREAK
+    }
 
     final Environment globals = new Environment();
     private Environment environment = globals;
-    private final Map<Expr, SymbolEntry> locals = new HashMap<>();
-
-    static class SymbolEntry {
-        int depth;
-        int idx;
-
-        SymbolEntry(int depth, int idx) {
-            this.depth = depth;
-            this.idx = idx;
-        }
-    }
+    // 正在执行的函数捕获的变量, 顶层代码为 null
+    private Upvalue[] upvalues;
+    private Object returnValue;
+    // 尾调用时 returnValue 是 TAIL_CALL, 接下来要执行的函数放在 tail 开头的字段里
+    static final Object TAIL_CALL = new Object();
+    LoxFunction tailFunction;
+    LoxInstance tailReceiver;
+    Object[] tailFrame;
+
+    // 调用深度的上限, 和 VM 一样由 -Dlox.frames 设置, 顶层代码也算一帧
+    // Lox 的调用在 Java 栈上嵌套, Lox.main 按这个上限给执行的线程分配足够大的栈,
+    // 所以递归深度由这个预算决定, 不受默认线程栈大小的限制
+    static final int FRAMES_MAX = Integer.getInteger("lox.frames", 1 << 16);
+    // 当前的调用深度, 由 LoxFunction.invoke 维护
+    int frames = 1;
 
     public Interpreter() {
-        globals.define("clock", new LoxCallable() {
+        globals.define(Symbol.intern("clock"), new LoxCallable() {
             @Override
             public int arity() { return 0; }
 
             @Override
-            public Object call(Interpreter interpreter,
-                               List<Object> arguments) {
+            public Object call0(Interpreter interpreter) {
                 return (double)System.currentTimeMillis() / 1000.0;
             }
 
+            @Override
+            public Object callN(Interpreter interpreter, Object[] arguments) {
+                return call0(interpreter);
+            }
+
             @Override
             public String toString() { return "<native fn>"; }
         });
     }
 
+    // Binary 和 Call 节点第一次执行时根据运算符和操作数类型特化自己,
+    // 之后只需检查类型是否仍然匹配, 类型变化时退回通用实现并不再特化
+    private static final int UNINITIALIZED = 0;
+    private static final int GENERIC = 1;
+    private static final int ADD_DOUBLE = 2;
+    private static final int ADD_STRING = 3;
+    private static final int SUBTRACT_DOUBLE = 4;
+    private static final int MULTIPLY_DOUBLE = 5;
+    private static final int DIVIDE_DOUBLE = 6;
+    private static final int GREATER_DOUBLE = 7;
+    private static final int GREATER_EQUAL_DOUBLE = 8;
+    private static final int LESS_DOUBLE = 9;
+    private static final int LESS_EQUAL_DOUBLE = 10;
+    private static final int CALL_FUNCTION = 11;
+    private static final int CALL_CLASS = 12;
+    // For 节点同样在第一次执行时判断是不是计数循环
+    private static final int COUNTER_LOOP = 13;
+
+    // evaluateDouble 遇到不是数字的值时返回这个特殊的 NaN, 值本身放在 notDouble 里
+    // 正常运算得到的 NaN 不会带这个 payload
+    private static final long NOT_A_DOUBLE_BITS = 0x7ff80000deadbeefL;
+    static final double NOT_A_DOUBLE = Double.longBitsToDouble(NOT_A_DOUBLE_BITS);
+    private Object notDouble;
+
+    private static boolean isNotDouble(double value) {
+        return Double.doubleToRawLongBits(value) == NOT_A_DOUBLE_BITS;
+    }
+
+    // 取走不是数字的值, 不让它一直被引用
+    private Object takeNotDouble() {
+        Object value = notDouble;
+        notDouble = null;
+        return value;
+    }
+
+    private double notDouble(Object value) {
+        if (value instanceof Double) return (double) value;
+        notDouble = value;
+        return NOT_A_DOUBLE;
+    }
+
+    // 特化成数值运算的表达式可以不装箱求值, 中间结果都是原始 double
+    private static boolean isNumeric(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            int specialized = ((Expr.Binary) expr).specialized;
+            return specialized == ADD_DOUBLE || specialized == SUBTRACT_DOUBLE
+                    || specialized == MULTIPLY_DOUBLE || specialized == DIVIDE_DOUBLE;
+        }
+        if (expr instanceof Expr.Unary) {
+            return ((Expr.Unary) expr).operator.type == TokenType.MINUS;
+        }
+        if (expr instanceof Expr.Grouping) {
+            return isNumeric(((Expr.Grouping) expr).expression);
+        }
+        return expr instanceof Expr.Literal && ((Expr.Literal) expr).value instanceof Double;
+    }
+
+    // 求值顺序和报错与 evaluate 完全一致, 结果不是数字时返回 NOT_A_DOUBLE
+    private double evaluateDouble(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            switch (binary.specialized) {
+                case ADD_DOUBLE:
+                case SUBTRACT_DOUBLE:
+                case MULTIPLY_DOUBLE:
+                case DIVIDE_DOUBLE:
+                    return arithmetic(binary);
+            }
+        } else if (expr instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable) expr;
+            if (variable.depth == Resolver.LOCAL) {
+                double value = environment.getDoubleAt(variable.slot);
+                if (isNotDouble(value)) notDouble = environment.getAt(variable.slot);
+                return value;
+            }
+        } else if (expr instanceof Expr.Literal) {
+            return notDouble(((Expr.Literal) expr).value);
+        } else if (expr instanceof Expr.Grouping) {
+            return evaluateDouble(((Expr.Grouping) expr).expression);
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            if (unary.operator.type == TokenType.MINUS) {
+                double right = evaluateDouble(unary.right);
+                if (isNotDouble(right)) {
+                    // 不是数字, 这里一定会报错
+                    checkNumberOperand(unary.operator, takeNotDouble());
+                }
+                return -right;
+            }
+        }
+        return notDouble(evaluate(expr));
+    }
+
+    private double arithmetic(Expr.Binary expr) {
+        double left = evaluateDouble(expr.left);
+        boolean leftIsDouble = !isNotDouble(left);
+        Object leftObject = leftIsDouble ? null : takeNotDouble();
+        double right = evaluateDouble(expr.right);
+        boolean rightIsDouble = !isNotDouble(right);
+        Object rightObject = rightIsDouble ? null : takeNotDouble();
+
+        if (leftIsDouble && rightIsDouble) {
+            switch (expr.specialized) {
+                case ADD_DOUBLE: return left + right;
+                case SUBTRACT_DOUBLE: return left - right;
+                case MULTIPLY_DOUBLE: return left * right;
+                case DIVIDE_DOUBLE:
+                    if (right != 0) return left / right;
+                    break;
+            }
+        } else if (expr.specialized == ADD_DOUBLE) {
+            expr.specialized = GENERIC;
+        }
+        return notDouble(binary(expr.operator,
+                leftIsDouble ? (Object) left : leftObject,
+                rightIsDouble ? (Object) right : rightObject));
+    }
+
+    private Object comparison(Expr.Binary expr) {
+        double left = evaluateDouble(expr.left);
+        boolean leftIsDouble = !isNotDouble(left);
+        Object leftObject = leftIsDouble ? null : takeNotDouble();
+        double right = evaluateDouble(expr.right);
+        boolean rightIsDouble = !isNotDouble(right);
+        Object rightObject = rightIsDouble ? null : takeNotDouble();
+
+        if (leftIsDouble && rightIsDouble) {
+            switch (expr.specialized) {
+                case GREATER_DOUBLE: return left > right;
+                case GREATER_EQUAL_DOUBLE: return left >= right;
+                case LESS_DOUBLE: return left < right;
+                case LESS_EQUAL_DOUBLE: return left <= right;
+            }
+        }
+        return binary(expr.operator,
+                leftIsDouble ? (Object) left : leftObject,
+                rightIsDouble ? (Object) right : rightObject);
+    }
+
     @Override
     public Object visitBinaryExpr(Expr.Binary expr) {
+        switch (expr.specialized) {
+            case ADD_DOUBLE:
+            case SUBTRACT_DOUBLE:
+            case MULTIPLY_DOUBLE:
+            case DIVIDE_DOUBLE: {
+                // 整棵数值表达式只在最外层装箱一次
+                double value = arithmetic(expr);
+                if (isNotDouble(value)) return takeNotDouble();
+                return value;
+            }
+            case GREATER_DOUBLE:
+            case GREATER_EQUAL_DOUBLE:
+            case LESS_DOUBLE:
+            case LESS_EQUAL_DOUBLE:
+                return comparison(expr);
+        }
+
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
 
-        switch (expr.operator.type) {
+        switch (expr.specialized) {
+            case ADD_STRING:
+                if (left instanceof String && right instanceof String) {
+                    return (String) left + (String) right;
+                }
+                expr.specialized = GENERIC;
+                break;
+            case UNINITIALIZED:
+                expr.specialized = specializeBinary(expr.operator.type, left, right);
+                break;
+        }
+
+        return binary(expr.operator, left, right);
+    }
+
+    // 除了 + 以外的算术和比较运算只接受数字, 特化失败时通用实现会报错
+    private static int specializeBinary(TokenType operator, Object left, Object right) {
+        switch (operator) {
+            case PLUS:
+                if (left instanceof Double && right instanceof Double) return ADD_DOUBLE;
+                if (left instanceof String && right instanceof String) return ADD_STRING;
+                return GENERIC;
+            case MINUS: return SUBTRACT_DOUBLE;
+            case STAR: return MULTIPLY_DOUBLE;
+            case SLASH: return DIVIDE_DOUBLE;
+            case GREATER: return GREATER_DOUBLE;
+            case GREATER_EQUAL: return GREATER_EQUAL_DOUBLE;
+            case LESS: return LESS_DOUBLE;
+            case LESS_EQUAL: return LESS_EQUAL_DOUBLE;
+        }
+        return GENERIC;
+    }
+
+    static Object binary(Token operator, Object left, Object right) {
+        switch (operator.type) {
             case MINUS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left - (double) right;
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 if ((double) right == 0) {
-                    throw new RuntimeError(expr.operator,
+                    throw new RuntimeError(operator,
                             "Divide by zero.");
                 }
                 return (double) left / (double) right;
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left * (double) right;
             case PLUS:
                 if (left instanceof Double && right instanceof Double) {
@@ -66,19 +271,19 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 if (left instanceof String) {
                     return (String) left + (right == null ? "nil" : right.toString());
                 }
-                throw new RuntimeError(expr.operator,
+                throw new RuntimeError(operator,
                         "Operands must be two numbers or two strings.");
             case GREATER:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left > (double) right;
             case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left >= (double) right;
             case LESS:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left < (double) right;
             case LESS_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                checkNumberOperands(operator, left, right);
                 return (double) left <= (double) right;
             case BANG_EQUAL:
                 return !isEqual(left, right);
@@ -132,51 +337,62 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         }
 
         Object value = evaluate(expr.value);
-        ((LoxInstance)object).set(expr.name, value);
+        expr.cache.setField((LoxInstance)object, expr.name.symbol, value);
         return value;
     }
 
     @Override
     public Object visitThisExpr(Expr.This expr) {
-        return lookUpVariable(expr.keyword, expr);
+        return lookUpVariable(expr.keyword, expr.depth, expr.slot);
     }
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
+        if (expr.operator.type == TokenType.MINUS) {
+            double value = evaluateDouble(expr);
+            if (isNotDouble(value)) return takeNotDouble();
+            return value;
+        }
+
         Object right = evaluate(expr.right);
 
         switch (expr.operator.type) {
             case BANG:
                 return !isTruthy(right);
-            case MINUS:
-                checkNumberOperand(expr.operator, right);
-                return -(double) right;
         };
         return null;
     }
 
     @Override
     public Object visitVariableExpr(Expr.Variable expr) {
-        return lookUpVariable(expr.name, expr);
-    }
-
-    private Object lookUpVariable(Token name, Expr expr) {
-        SymbolEntry symbolEntry = locals.get(expr);
-        if (symbolEntry != null) {
-            return environment.getAt(symbolEntry.depth, symbolEntry.idx);
-        } else {
-            return globals.get(name);
+        return lookUpVariable(expr.name, expr.depth, expr.slot);
+    }
+
+    // depth 由 Resolver 回填, 区分当前帧, upvalue 和全局变量, 三种情况都按 slot 取值
+    private Object lookUpVariable(Token name, int depth, int slot) {
+        switch (depth) {
+            case Resolver.LOCAL:
+                return environment.getAt(slot);
+            case Resolver.UPVALUE:
+                return upvalues[slot].get();
+            default:
+                return globals.getGlobal(slot, name);
         }
     }
 
     @Override
-    public Void visitBlockStmt(Stmt.Block stmt) {
-        executeBlock(stmt.statements, new Environment(environment));
-        return null;
+    public Completion visitBlockStmt(Stmt.Block stmt) {
+        if (stmt.slots == Resolver.NO_FRAME) {
+            Completion completion = executeStatements(stmt.statements);
+            // 块里的 slot 之后会被复用, 捕获它们的闭包改为持有自己的值
+            environment.closeUpvalues(stmt.base);
+            return completion;
+        }
+        return executeBlock(stmt.statements, new Environment(stmt.slots), upvalues);
     }
 
     @Override
-    public Void visitClassStmt(Stmt.Class stmt) {
+    public Completion visitClassStmt(Stmt.Class stmt) {
         Object superclass = null;
         if (stmt.superclass != null) {
             superclass = evaluate(stmt.superclass);
@@ -185,42 +401,40 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                         "Superclass must be a class.");
             }
         }
-        environment.define(stmt.name.lexeme, null);
+        // 方法通过 upvalue 捕获 super, 顶层的类没有外层的帧, 为 super 单独创建一个
+        Environment previous = environment;
         if (stmt.superclass != null) {
-            environment = new Environment(environment);
-            environment.define("super", superclass);
+            if (stmt.slot < 0) environment = new Environment(1);
+            environment.assignAt(stmt.superSlot, superclass);
         }
-        Map<String, LoxFunction> methods = new HashMap<>();
-        Map<String, LoxFunction> klassMethods = new HashMap<>();
+        Map<Symbol, LoxFunction> methods = new HashMap<>();
+        Map<Symbol, LoxFunction> klassMethods = new HashMap<>();
         for (Stmt.Function method : stmt.methods) {
-            LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"), method.isGetter);
-            methods.put(method.name.lexeme, function);
+            LoxFunction function = new LoxFunction(method, capture(method), method.name.symbol == Symbol.INIT, method.isGetter);
+            methods.put(method.name.symbol, function);
         }
 
         for (Stmt.Function method : stmt.klassMethods) {
-            LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"), method.isGetter);
-            klassMethods.put(method.name.lexeme, function);
+            LoxFunction function = new LoxFunction(method, capture(method), method.name.symbol == Symbol.INIT, method.isGetter);
+            klassMethods.put(method.name.symbol, function);
         }
         LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass)superclass, methods, klassMethods);
         if (superclass != null) {
-            environment = environment.enclosing;
+            environment.closeUpvalues(stmt.superSlot);
+            environment = previous;
         }
-        environment.assign(stmt.name, klass);
-        if (stmt.superclass != null) {
-            environment = new Environment(environment);
-            environment.define("super", superclass);
-        }
-        return null;
+        // 方法体里对类名的引用在调用时才求值, 所以类名可以在方法创建之后再定义
+        define(stmt.name, stmt.slot, klass);
+        return Completion.NORMAL;
     }
 
     @Override
     public Object visitSuperExpr(Expr.Super expr) {
-        SymbolEntry entry = locals.get(expr);
-        LoxClass superclass = (LoxClass)environment.getAt(
-                entry.depth, "super");
-        LoxInstance object = (LoxInstance)environment.getAt(
-                entry.depth - 1, "this");
-        LoxFunction method = superclass.findMethod(expr.method.lexeme);
+        LoxClass superclass = (LoxClass)lookUpVariable(
+                expr.keyword, expr.depth, expr.slot);
+        LoxInstance object = (LoxInstance)lookUpVariable(
+                expr.keyword, expr.thisDepth, expr.thisSlot);
+        LoxFunction method = superclass.findMethod(expr.method.symbol);
         if (method == null) {
             throw new RuntimeError(expr.method,
                     "Undefined property '" + expr.method.lexeme + "'.");
@@ -229,111 +443,442 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
 
     @Override
-    public Void visitExpressionStmt(Stmt.Expression stmt) {
-        evaluate(stmt.expression);
-        return null;
+    public Completion visitExpressionStmt(Stmt.Expression stmt) {
+        evaluateForEffect(stmt.expression);
+        return Completion.NORMAL;
+    }
+
+    // 不需要结果的表达式, 比如表达式语句和 for 的增量
+    private void evaluateForEffect(Expr expression) {
+        // 语句里的赋值不需要结果, 数值可以不装箱直接存进局部变量
+        if (expression instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign) expression;
+            if (assign.depth == Resolver.LOCAL && isNumeric(assign.value)) {
+                double value = evaluateDouble(assign.value);
+                if (isNotDouble(value)) {
+                    environment.assignAt(assign.slot, takeNotDouble());
+                } else {
+                    environment.assignDoubleAt(assign.slot, value);
+                }
+                return;
+            }
+        }
+        evaluate(expression);
     }
 
     @Override
-    public Void visitFunctionStmt(Stmt.Function stmt) {
-        LoxFunction function = new LoxFunction(stmt, environment, false, stmt.isGetter);
-        environment.define(stmt.name.lexeme, function);
-        return null;
+    public Completion visitFunctionStmt(Stmt.Function stmt) {
+        LoxFunction function = new LoxFunction(stmt, capture(stmt), false, stmt.isGetter);
+        define(stmt.name, stmt.slot, function);
+        return Completion.NORMAL;
+    }
+
+    private static final Upvalue[] NO_UPVALUES = new Upvalue[0];
+
+    // 按 Resolver 记录的顺序捕获函数用到的外层变量: 非负数是当前帧的 slot, ~index 是当前函数的 upvalue
+    private Upvalue[] capture(Stmt.Function declaration) {
+        int[] captures = declaration.upvalues;
+        if (captures.length == 0) return NO_UPVALUES;
+        Upvalue[] result = new Upvalue[captures.length];
+        for (int i = 0; i < captures.length; i++) {
+            int capture = captures[i];
+            result[i] = capture >= 0 ? environment.capture(capture) : upvalues[~capture];
+        }
+        return result;
     }
     @Override
-    public Void visitPrintStmt(Stmt.Print stmt) {
+    public Completion visitPrintStmt(Stmt.Print stmt) {
         Object value = evaluate(stmt.expression);
         System.out.println(stringify(value));
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitReturnStmt(Stmt.Return stmt) {
+    public Completion visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.tail) return tailCall((Expr.Call) stmt.value);
         Object value = null;
         if (stmt.value != null) value = evaluate(stmt.value);
 
-        throw new Return(value);
+        returnValue = value;
+        return Completion.RETURN;
+    }
+
+    // 尾调用在这里只对被调函数和实参求值, 把它们交给 LoxFunction.invoke,
+    // 当前函数返回之后由那里的循环接着执行, 递归再深也不会增加 Java 栈帧
+    private Completion tailCall(Expr.Call expr) {
+        Object callee;
+        if (expr.callee instanceof Expr.Get) {
+            Expr.Get get = (Expr.Get) expr.callee;
+            Object object = evaluate(get.object);
+            LoxFunction method = findMethod(get, object);
+            if (method != null && !method.isGetter()) {
+                return tailCall(method, (LoxInstance) object, expr);
+            }
+            callee = getProperty(get, object);
+        } else {
+            callee = evaluate(expr.callee);
+        }
+        if (callee instanceof LoxFunction) {
+            LoxFunction function = (LoxFunction) callee;
+            return tailCall(function, function.getReceiver(), expr);
+        }
+        // 类和原生函数照常调用
+        returnValue = call(callee, expr);
+        return Completion.RETURN;
+    }
+
+    private Completion tailCall(LoxFunction function, LoxInstance receiver, Expr.Call expr) {
+        if (function.arity() != expr.arguments.size()) arityMismatch(function, expr);
+        returnValue = tailCall(function, receiver, evaluateArguments(function, expr));
+        return Completion.RETURN;
+    }
+
+    Object tailCall(LoxFunction function, LoxInstance receiver, Object[] frame) {
+        tailFunction = function;
+        tailReceiver = receiver;
+        tailFrame = frame;
+        return TAIL_CALL;
     }
 
     @Override
-    public Void visitVarStmt(Stmt.Var stmt) {
+    public Completion visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null && isNumeric(stmt.initializer)) {
+            double value = evaluateDouble(stmt.initializer);
+            if (isNotDouble(value)) {
+                define(stmt.name, stmt.slot, takeNotDouble());
+            } else if (stmt.slot >= 0) {
+                environment.assignDoubleAt(stmt.slot, value);
+            } else {
+                // 全局变量按名字访问, 仍然装箱存放
+                environment.define(stmt.name.symbol, value);
+            }
+            return Completion.NORMAL;
+        }
+
         Object value = null;
         if (stmt.initializer != null) {
             value = evaluate(stmt.initializer);
         }
 
-        environment.define(stmt.name.lexeme, value);
-        return null;
+        define(stmt.name, stmt.slot, value);
+        return Completion.NORMAL;
     }
 
-    static class WhileBreakException extends RuntimeException {}
+    // 局部变量的 slot 由 Resolver 分配, 所在的作用域可能合并到了外层的帧里, 不能按声明顺序依次放
+    private void define(Token name, int slot, Object value) {
+        if (slot >= 0) {
+            environment.assignAt(slot, value);
+        } else {
+            environment.define(name.symbol, value);
+        }
+    }
 
     @Override
-    public Void visitWhileStmt(Stmt.While stmt) {
+    public Completion visitWhileStmt(Stmt.While stmt) {
         while (isTruthy(evaluate(stmt.condition))) {
-            try {
-                execute(stmt.body);
-            } catch (WhileBreakException e) {
+            Completion completion = execute(stmt.body);
+            if (completion == Completion.BREAK) break;
+            if (completion == Completion.RETURN) return completion;
+        }
+        return Completion.NORMAL;
+    }
+
+    // 循环变量放在外层的帧里, 顶层的循环没有外层的帧时才创建一个
+    // 整个循环共用一个循环变量, 循环结束后才关闭捕获它的 upvalue
+    @Override
+    public Completion visitForStmt(Stmt.For stmt) {
+        Environment previous = this.environment;
+        try {
+            if (stmt.slots != Resolver.NO_FRAME) this.environment = new Environment(stmt.slots);
+            if (stmt.initializer != null) execute(stmt.initializer);
+            if (stmt.specialized == UNINITIALIZED) stmt.specialized = specializeFor(stmt);
+            if (stmt.specialized == COUNTER_LOOP) return counterLoop(stmt);
+
+            for (;;) {
+                if (stmt.condition != null && !isTruthy(evaluate(stmt.condition))) break;
+                Completion completion = execute(stmt.body);
+                if (completion == Completion.BREAK) break;
+                if (completion == Completion.RETURN) return completion;
+                if (stmt.increment != null) evaluateForEffect(stmt.increment);
+            }
+            return Completion.NORMAL;
+        } finally {
+            this.environment.closeUpvalues(stmt.base);
+            this.environment = previous;
+        }
+    }
+
+    // for (var i = a; i < b; i = i + c) 形式的循环, 循环变量在当前帧里, slot 由 Resolver 分配
+    // 比较的运算符任意, 步长 c 是数字字面量, 加减都可以
+    private static int specializeFor(Stmt.For stmt) {
+        if (!(stmt.initializer instanceof Stmt.Var)
+                || !(stmt.condition instanceof Expr.Binary)
+                || !(stmt.increment instanceof Expr.Assign)) return GENERIC;
+        Expr.Binary condition = (Expr.Binary) stmt.condition;
+        switch (condition.operator.type) {
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
                 break;
+            default:
+                return GENERIC;
+        }
+        int slot = ((Stmt.Var) stmt.initializer).slot;
+        Expr.Assign increment = (Expr.Assign) stmt.increment;
+        if (!isCounter(condition.left, slot) || increment.depth != Resolver.LOCAL || increment.slot != slot
+                || !(increment.value instanceof Expr.Binary)) return GENERIC;
+        Expr.Binary step = (Expr.Binary) increment.value;
+        if (step.operator.type != TokenType.PLUS && step.operator.type != TokenType.MINUS) return GENERIC;
+        if (!isCounter(step.left, slot) || !(step.right instanceof Expr.Literal)
+                || !(((Expr.Literal) step.right).value instanceof Double)) return GENERIC;
+        return COUNTER_LOOP;
+    }
+
+    private static boolean isCounter(Expr expr, int slot) {
+        if (!(expr instanceof Expr.Variable)) return false;
+        Expr.Variable variable = (Expr.Variable) expr;
+        return variable.depth == Resolver.LOCAL && variable.slot == slot;
+    }
+
+    // 计数器不装箱地留在循环帧里, 比较和递增都直接对 double 计算
+    // 循环体可能给计数器赋别的值, 所以每次都从帧里重新读取
+    private Completion counterLoop(Stmt.For stmt) {
+        int slot = ((Stmt.Var) stmt.initializer).slot;
+        Expr.Binary condition = (Expr.Binary) stmt.condition;
+        Expr.Binary next = (Expr.Binary) ((Expr.Assign) stmt.increment).value;
+        double step = (double) ((Expr.Literal) next.right).value;
+        if (next.operator.type == TokenType.MINUS) step = -step;
+
+        for (;;) {
+            double counter = environment.getDoubleAt(slot);
+            double bound = evaluateDouble(condition.right);
+            if (isNotDouble(counter) || isNotDouble(bound)) {
+                // 比较的操作数不是数字, 由通用实现报告错误
+                Object right = isNotDouble(bound) ? takeNotDouble() : (Object) bound;
+                binary(condition.operator, environment.getAt(slot), right);
+            }
+            boolean test;
+            switch (condition.operator.type) {
+                case GREATER: test = counter > bound; break;
+                case GREATER_EQUAL: test = counter >= bound; break;
+                case LESS: test = counter < bound; break;
+                default: test = counter <= bound; break;
+            }
+            if (!test) break;
+
+            Completion completion = execute(stmt.body);
+            if (completion == Completion.BREAK) break;
+            if (completion == Completion.RETURN) return completion;
+
+            counter = environment.getDoubleAt(slot);
+            if (isNotDouble(counter)) {
+                evaluate(stmt.increment);
+            } else {
+                environment.assignDoubleAt(slot, counter + step);
             }
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
-    public Void visitBreakStmt(Stmt.Break stmt) {
-        throw new WhileBreakException();
+    public Completion visitBreakStmt(Stmt.Break stmt) {
+        return Completion.BREAK;
     }
 
     @Override
     public Object visitAssignExpr(Expr.Assign expr) {
         Object value = evaluate(expr.value);
-        SymbolEntry symbolEntry = locals.get(expr);
-        if (symbolEntry != null) {
-            environment.assignAt(symbolEntry.depth, expr.name, symbolEntry.idx, value);
-        } else {
-            globals.assign(expr.name, value);
+        switch (expr.depth) {
+            case Resolver.LOCAL:
+                environment.assignAt(expr.slot, value);
+                break;
+            case Resolver.UPVALUE:
+                upvalues[expr.slot].set(value);
+                break;
+            default:
+                globals.assignGlobal(expr.slot, expr.name, value);
         }
         return value;
     }
 
     @Override
-    public Void visitIfStmt(Stmt.If stmt) {
+    public Completion visitIfStmt(Stmt.If stmt) {
         if (isTruthy(evaluate(stmt.condition))) {
-            execute(stmt.thenBranch);
+            return execute(stmt.thenBranch);
         } else if (stmt.elseBranch != null) {
-            execute(stmt.elseBranch);
+            return execute(stmt.elseBranch);
         }
-        return null;
+        return Completion.NORMAL;
     }
 
     @Override
     public Object visitCallExpr(Expr.Call expr) {
-        Object callee = evaluate(expr.callee);
+        // 调用在 Java 栈上嵌套, 栈用完时在最里层的调用点换成 Lox 的运行时错误
+        try {
+            Object callee;
+            if (expr.callee instanceof Expr.Get) {
+                // obj.method(...) 直接以 obj 为 this 调用, 不创建绑定后的方法
+                Expr.Get get = (Expr.Get) expr.callee;
+                Object object = evaluate(get.object);
+                LoxFunction method = findMethod(get, object);
+                if (method != null && !method.isGetter()) {
+                    return invoke(method, (LoxInstance) object, expr);
+                }
+                callee = getProperty(get, object);
+            } else {
+                callee = evaluate(expr.callee);
+            }
 
-        List<Object> arguments = new ArrayList<>();
-        for (Expr argument : expr.arguments) {
-            arguments.add(evaluate(argument));
+            // 单态调用点直接调用具体类型, 省去接口分派
+            switch (expr.specialized) {
+                case CALL_FUNCTION:
+                    if (callee instanceof LoxFunction) {
+                        return invoke((LoxFunction) callee, expr);
+                    }
+                    expr.specialized = GENERIC;
+                    break;
+                case CALL_CLASS:
+                    if (callee instanceof LoxClass) {
+                        return construct((LoxClass) callee, expr);
+                    }
+                    expr.specialized = GENERIC;
+                    break;
+                case UNINITIALIZED:
+                    if (callee instanceof LoxFunction) {
+                        expr.specialized = CALL_FUNCTION;
+                    } else if (callee instanceof LoxClass) {
+                        expr.specialized = CALL_CLASS;
+                    } else {
+                        expr.specialized = GENERIC;
+                    }
+                    break;
+            }
+            return call(callee, expr);
+        } catch (StackOverflowError error) {
+            throw RuntimeError.stackOverflow(expr.paren);
+        } catch (RuntimeError error) {
+            throw error.at(expr.paren);
         }
+    }
 
+    // 按参数个数选择 call0 ~ call3, 参数放在局部变量里, 不创建数组
+    private Object call(Object callee, Expr.Call expr) {
+        List<Expr> arguments = expr.arguments;
+        Object a0, a1, a2;
+        switch (arguments.size()) {
+            case 0:
+                return callable(callee, expr).call0(this);
+            case 1:
+                a0 = evaluate(arguments.get(0));
+                return callable(callee, expr).call1(this, a0);
+            case 2:
+                a0 = evaluate(arguments.get(0));
+                a1 = evaluate(arguments.get(1));
+                return callable(callee, expr).call2(this, a0, a1);
+            case 3:
+                a0 = evaluate(arguments.get(0));
+                a1 = evaluate(arguments.get(1));
+                a2 = evaluate(arguments.get(2));
+                return callable(callee, expr).call3(this, a0, a1, a2);
+            default:
+                Object[] values = evaluateArguments(expr);
+                return callable(callee, expr).callN(this, values);
+        }
+    }
+
+    // 参数求值之后再检查被调用的值和参数个数, 和 clox 的顺序一致
+    private LoxCallable callable(Object callee, Expr.Call expr) {
         if (!(callee instanceof LoxCallable)) {
             throw new RuntimeError(expr.paren,
                     "Can only call functions and classes.");
         }
+        LoxCallable function = (LoxCallable) callee;
+        checkArity(function.arity(), expr.arguments.size(), expr.paren);
+        return function;
+    }
+
+    static void checkArity(int arity, int count, Token paren) {
+        if (arity != count) {
+            throw new RuntimeError(paren, "Expected " + arity +
+                    " arguments but got " + count + ".");
+        }
+    }
 
-        LoxCallable function = (LoxCallable)callee;
-        return function.call(this, arguments);
+    // 调用 LoxFunction 时把实参直接求值到它的新帧里, 不创建参数列表, 方法也不需要 bind
+    // 参数个数不对时帧放不下实参, 先按顺序求值再报错
+    private Object invoke(LoxFunction function, Expr.Call expr) {
+        if (function.arity() != expr.arguments.size()) return arityMismatch(function, expr);
+        return function.invoke(this, evaluateArguments(function, expr));
+    }
+
+    private Object invoke(LoxFunction method, LoxInstance receiver, Expr.Call expr) {
+        if (method.arity() != expr.arguments.size()) return arityMismatch(method, expr);
+        return method.invoke(this, receiver, evaluateArguments(method, expr));
+    }
+
+    private Object construct(LoxClass klass, Expr.Call expr) {
+        if (klass.arity() != expr.arguments.size()) return arityMismatch(klass, expr);
+        LoxFunction initializer = klass.getInitializer();
+        return klass.construct(this, initializer == null ? null : evaluateArguments(initializer, expr));
+    }
+
+    private Object arityMismatch(LoxCallable function, Expr.Call expr) {
+        evaluateArguments(expr);
+        checkArity(function.arity(), expr.arguments.size(), expr.paren);
+        return null;
+    }
+
+    private Object[] evaluateArguments(LoxFunction function, Expr.Call expr) {
+        Object[] frame = function.frame();
+        List<Expr> arguments = expr.arguments;
+        for (int i = 0; i < arguments.size(); i++) {
+            frame[i + 1] = evaluate(arguments.get(i));
+        }
+        return frame;
+    }
+
+    private Object[] evaluateArguments(Expr.Call expr) {
+        Object[] values = new Object[expr.arguments.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = evaluate(expr.arguments.get(i));
+        }
+        return values;
     }
 
     @Override
     public Object visitGetExpr(Expr.Get expr) {
-        Object object = evaluate(expr.object);
+        return getProperty(expr, evaluate(expr.object));
+    }
 
+    Object getProperty(Expr.Get expr, Object object) {
         if (object instanceof LoxInstance) {
-            Object obj = ((LoxInstance) object).get(expr.name);
+            LoxInstance instance = (LoxInstance) object;
+            Object obj;
+            int slot = expr.cache.fieldSlot(instance.getShape(), expr.name.symbol);
+            if (slot >= 0) {
+                obj = instance.getField(slot);
+            } else if (instance.getKlass() != null) {
+                LoxFunction method = expr.cache.findMethod(instance.getKlass(), expr.name.symbol);
+                if (method == null) {
+                    throw new RuntimeError(expr.name,
+                            "Undefined property '" + expr.name.lexeme + "'.");
+                }
+                obj = method.bind(instance);
+            } else {
+                obj = instance.get(expr.name);
+            }
             // 适配 getter
             if (obj instanceof LoxFunction && ((LoxFunction) obj).isGetter()) {
-                return ((LoxFunction) obj).call(this, new ArrayList<>());
+                LoxFunction getter = (LoxFunction) obj;
+                // getter 也是一层 Lox 调用, 栈溢出的处理和 visitCallExpr 一样
+                try {
+                    return getter.invoke(this, getter.frame());
+                } catch (StackOverflowError error) {
+                    throw RuntimeError.stackOverflow(expr.name);
+                } catch (RuntimeError error) {
+                    throw error.at(expr.name);
+                }
             }
             return obj;
         }
@@ -342,25 +887,35 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
                 "Only instances have properties.");
     }
 
-    private void checkNumberOperands(Token operator, Object left, Object right) {
+    // 通过调用点的内联缓存查找方法, 字段会覆盖同名方法, 所以有同名字段时返回 null
+    // 类本身的属性和类方法由 LoxClass.get 处理, 也返回 null
+    static LoxFunction findMethod(Expr.Get expr, Object object) {
+        if (!(object instanceof LoxInstance)) return null;
+        LoxInstance instance = (LoxInstance) object;
+        LoxClass klass = instance.getKlass();
+        if (klass == null || expr.cache.fieldSlot(instance.getShape(), expr.name.symbol) >= 0) return null;
+        return expr.cache.findMethod(klass, expr.name.symbol);
+    }
+
+    private static void checkNumberOperands(Token operator, Object left, Object right) {
         if (left instanceof Double && right instanceof Double) return;
 
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private void checkNumberOperand(Token operator, Object operand) {
+    static void checkNumberOperand(Token operator, Object operand) {
         if (operand instanceof Double) return;
         throw new RuntimeError(operator, "Operand must be a number.");
     }
 
-    private boolean isEqual(Object a, Object b) {
+    static boolean isEqual(Object a, Object b) {
         if (a == null && b == null) return true;
         if (a == null) return false;
 
         return a.equals(b);
     }
 
-    private String stringify(Object object) {
+    static String stringify(Object object) {
         if (object == null) return "nil";
 
         if (object instanceof Double) {
@@ -374,7 +929,7 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return object.toString();
     }
 
-    private boolean isTruthy(Object object) {
+    static boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
         return true;
@@ -384,35 +939,49 @@ public class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return expr.accept(this);
     }
 
-    private void execute(Stmt stmt) {
-        stmt.accept(this);
-    }
-
-    void resolve(Expr expr, int depth, int idx) {
-        locals.put(expr, new SymbolEntry(depth, idx));
+    private Completion execute(Stmt stmt) {
+        return stmt.accept(this);
     }
 
-    public void executeBlock(List<Stmt> statements,
-                      Environment environment) {
+    // 在新的帧里执行, 函数调用同时切换到被调用函数的 upvalue
+    // 帧用完之后关闭还指向它的 upvalue, 闭包不会让整个帧一直存活
+    Completion executeBlock(List<Stmt> statements, Environment environment, Upvalue[] upvalues) {
         Environment previous = this.environment;
+        Upvalue[] enclosing = this.upvalues;
         try {
             this.environment = environment;
-
-            for (Stmt statement : statements) {
-                execute(statement);
-            }
+            this.upvalues = upvalues;
+            return executeStatements(statements);
         } finally {
+            environment.closeUpvalues(0);
             this.environment = previous;
+            this.upvalues = enclosing;
         }
     }
 
+    // 合并到外层帧的 Block 直接在当前的 Environment 里执行
+    private Completion executeStatements(List<Stmt> statements) {
+        for (Stmt statement : statements) {
+            Completion completion = execute(statement);
+            if (completion != Completion.NORMAL) return completion;
+        }
+        return Completion.NORMAL;
+    }
+
+    // 取走最近一次 return 的返回值, 不让它一直被引用
+    Object takeReturnValue() {
+        Object value = returnValue;
+        returnValue = null;
+        return value;
+    }
+
     public void interpret(List<Stmt> statements) {
         try {
             for (Stmt statement : statements) {
                 execute(statement);
             }
         } catch (RuntimeError error) {
-            Lox.runtimeError(error);
+            Lox.runtimeError(error.unwindScript());
         }
     }
 }
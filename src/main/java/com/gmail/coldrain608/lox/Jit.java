@@ -0,0 +1,648 @@
+package com.gmail.coldrain608.lox;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// 把调用次数超过阈值的函数编译成 JVM 类, 用 hidden class 加载后交给 HotSpot 继续优化
+// 参数和函数内的局部变量放在 JVM 局部变量里, 不再创建 Environment
+// 函数体里有嵌套的函数或类时需要捕获局部变量, 这种函数不编译, 继续由 Interpreter 执行
+class Jit implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+    // -Dlox.jit.threshold=N 调整阈值, 小于等于 0 时关闭 Jit
+    static final int THRESHOLD = Integer.getInteger("lox.jit.threshold", 1000);
+    private static final boolean TRACE = Boolean.getBoolean("lox.jit.trace");
+
+    private static final String SELF = "com/gmail/coldrain608/lox/JitCode$Compiled";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String TOKEN = "com/gmail/coldrain608/lox/Token";
+    private static final String UPVALUE = "com/gmail/coldrain608/lox/Upvalue";
+    private static final String RUNTIME = "com/gmail/coldrain608/lox/JitRuntime";
+    private static final String CALL_DESCRIPTOR = "(Lcom/gmail/coldrain608/lox/Interpreter;"
+            + "[Lcom/gmail/coldrain608/lox/Upvalue;[Ljava/lang/Object;)Ljava/lang/Object;";
+
+    // JVM 局部变量 0 是 this, 1 到 3 是 call 的参数, 之后依次是帧的各个 slot
+    private static final int INTERPRETER = 1;
+    private static final int UPVALUES = 2;
+    private static final int ARGUMENTS = 3;
+    private static final int FRAME = 4;
+
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    private static final ExecutorService background = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "lox-jit");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // 在后台线程编译, 完成后写入 volatile 字段, 下一次调用就会走编译后的代码
+    static void submit(Stmt.Function declaration) {
+        background.execute(() -> {
+            JitCode code = compile(declaration);
+            if (code != null) declaration.compiled = code;
+        });
+    }
+
+    private static JitCode compile(Stmt.Function declaration) {
+        try {
+            Jit jit = new Jit();
+            byte[] bytes = jit.generate(declaration);
+            MethodHandles.Lookup compiled = lookup.defineHiddenClassWithClassData(
+                    bytes, jit.constants.toArray(), true);
+            JitCode code = (JitCode) compiled.findConstructor(compiled.lookupClass(),
+                    MethodType.methodType(void.class)).invoke();
+            if (TRACE) System.err.println("[jit] compiled " + declaration.name.lexeme);
+            return code;
+        } catch (Unsupported e) {
+            if (TRACE) System.err.println("[jit] skipped " + declaration.name.lexeme + ": " + e.getMessage());
+        } catch (Throwable e) {
+            if (TRACE) System.err.println("[jit] failed " + declaration.name.lexeme + ": " + e);
+        }
+        return null;
+    }
+
+    private static class Unsupported extends RuntimeException {
+        Unsupported(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private ClassWriter.Code code;
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndex = new IdentityHashMap<>();
+    private final List<ClassWriter.Code.Label> loopExits = new ArrayList<>();
+    // 算术表达式用到的临时变量, 排在帧的各个 slot 之后
+    private int temps;
+
+    private Jit() {}
+
+    private byte[] generate(Stmt.Function declaration) {
+        ClassWriter writer = new ClassWriter(SELF, OBJECT, "com/gmail/coldrain608/lox/JitCode");
+        writer.field(ClassWriter.ACC_STATIC | ClassWriter.ACC_FINAL, "constants", "[Ljava/lang/Object;");
+
+        // 常量通过 class data 传进来, 放在 static final 字段里
+        ClassWriter.Code clinit = writer.method(ClassWriter.ACC_STATIC, "<clinit>", "()V");
+        clinit.invokestatic("java/lang/invoke/MethodHandles", "lookup",
+                "()Ljava/lang/invoke/MethodHandles$Lookup;");
+        clinit.ldcString("_");
+        clinit.ldcClass("[Ljava/lang/Object;");
+        clinit.invokestatic("java/lang/invoke/MethodHandles", "classData",
+                "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/Object;");
+        clinit.checkcast("[Ljava/lang/Object;");
+        clinit.putstatic(SELF, "constants", "[Ljava/lang/Object;");
+        clinit.vreturn();
+        clinit.end();
+
+        ClassWriter.Code init = writer.method(ClassWriter.ACC_PUBLIC, "<init>", "()V");
+        init.aload(0);
+        init.invokespecial(OBJECT, "<init>", "()V");
+        init.vreturn();
+        init.end();
+
+        code = writer.method(ClassWriter.ACC_PUBLIC, "call", CALL_DESCRIPTOR);
+        // 调用方传进来的帧里 slot 0 是 this, 参数从 slot 1 开始, 其余的局部变量先清成 nil
+        int arguments = declaration.params.size() + 1;
+        temps = local(declaration.slots);
+        for (int i = 0; i < declaration.slots; i++) {
+            if (i < arguments) {
+                code.aload(ARGUMENTS);
+                code.iconst(i);
+                code.aaload();
+            } else {
+                code.aconstNull();
+            }
+            code.astore(local(i));
+        }
+        for (Stmt statement : declaration.body) {
+            statement.accept(this);
+        }
+        code.aconstNull();
+        code.areturn();
+        code.end();
+
+        return writer.toByteArray();
+    }
+
+    // 函数内的作用域都合并在函数的帧里, slot 直接对应 JVM 局部变量
+    private static int local(int slot) {
+        return FRAME + slot;
+    }
+
+    private void constant(Object value) {
+        Integer index = constantIndex.get(value);
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantIndex.put(value, index);
+        }
+        code.getstatic(SELF, "constants", "[Ljava/lang/Object;");
+        code.iconst(index);
+        code.aaload();
+    }
+
+    private void token(Token token) {
+        constant(token);
+        code.checkcast(TOKEN);
+    }
+
+    private void runtime(String name, String descriptor) {
+        code.invokestatic(RUNTIME, name, descriptor);
+    }
+
+    private void truthy() {
+        code.invokestatic("com/gmail/coldrain608/lox/Interpreter", "isTruthy", "(Ljava/lang/Object;)Z");
+    }
+
+    private void variable(Token name, int depth, int slot) {
+        if (depth < 0) {
+            code.aload(INTERPRETER);
+            code.iconst(slot);
+            token(name);
+            runtime("global", "(Lcom/gmail/coldrain608/lox/Interpreter;ILcom/gmail/coldrain608/lox/Token;)Ljava/lang/Object;");
+            return;
+        }
+        if (depth == Resolver.LOCAL) {
+            code.aload(local(slot));
+        } else {
+            code.aload(UPVALUES);
+            code.iconst(slot);
+            code.aaload();
+            code.invokevirtual(UPVALUE, "get", "()Ljava/lang/Object;");
+        }
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        expr.value.accept(this);
+        if (expr.depth < 0) {
+            code.aload(INTERPRETER);
+            code.iconst(expr.slot);
+            token(expr.name);
+            runtime("assignGlobal", "(Ljava/lang/Object;Lcom/gmail/coldrain608/lox/Interpreter;ILcom/gmail/coldrain608/lox/Token;)Ljava/lang/Object;");
+            return null;
+        }
+        if (expr.depth == Resolver.LOCAL) {
+            code.dup();
+            code.astore(local(expr.slot));
+        } else {
+            code.aload(UPVALUES);
+            code.iconst(expr.slot);
+            runtime("assignUpvalue", "(Ljava/lang/Object;[Lcom/gmail/coldrain608/lox/Upvalue;I)Ljava/lang/Object;");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        if (numeric(expr)) {
+            number(expr);
+            code.invokestatic("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;");
+            return null;
+        }
+        if (comparison(expr)) {
+            ClassWriter.Code.Label isFalse = code.label();
+            ClassWriter.Code.Label end = code.label();
+            compare(expr, isFalse);
+            code.getstatic("java/lang/Boolean", "TRUE", "Ljava/lang/Boolean;");
+            code.goto_(end);
+            code.stack(code.stack() - 1);
+            code.mark(isFalse);
+            code.getstatic("java/lang/Boolean", "FALSE", "Ljava/lang/Boolean;");
+            code.mark(end);
+            return null;
+        }
+        expr.left.accept(this);
+        expr.right.accept(this);
+        token(expr.operator);
+        runtime(expr.operator.type == TokenType.PLUS ? "add" : "binary",
+                "(Ljava/lang/Object;Ljava/lang/Object;Lcom/gmail/coldrain608/lox/Token;)Ljava/lang/Object;");
+        return null;
+    }
+
+    // 结果一定是数字的表达式: 数字字面量, 取负, 减乘除, 以及两边都是这类表达式的加法
+    // 这样的表达式整棵按 double 在 JVM 栈上计算, 只在叶子上拆箱, 最后装箱一次
+    private static boolean numeric(Expr expr) {
+        if (expr instanceof Expr.Literal) return ((Expr.Literal) expr).value instanceof Double;
+        if (expr instanceof Expr.Grouping) return numeric(((Expr.Grouping) expr).expression);
+        if (expr instanceof Expr.Unary) return ((Expr.Unary) expr).operator.type == TokenType.MINUS;
+        if (!(expr instanceof Expr.Binary)) return false;
+        Expr.Binary binary = (Expr.Binary) expr;
+        switch (binary.operator.type) {
+            case MINUS:
+            case STAR:
+            case SLASH:
+                return true;
+            case PLUS:
+                return numeric(binary.left) && numeric(binary.right);
+        }
+        return false;
+    }
+
+    private static boolean comparison(Expr expr) {
+        if (!(expr instanceof Expr.Binary)) return false;
+        switch (((Expr.Binary) expr).operator.type) {
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                return true;
+        }
+        return false;
+    }
+
+    // 把 numeric 的表达式求值成栈上的 double
+    private void number(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            code.ldcDouble((double) ((Expr.Literal) expr).value);
+        } else if (expr instanceof Expr.Grouping) {
+            number(((Expr.Grouping) expr).expression);
+        } else if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary) expr;
+            if (numeric(unary.right)) {
+                number(unary.right);
+            } else {
+                unary.right.accept(this);
+                token(unary.operator);
+                runtime("operand", "(Ljava/lang/Object;Lcom/gmail/coldrain608/lox/Token;)D");
+            }
+            code.dneg();
+        } else {
+            Expr.Binary binary = (Expr.Binary) expr;
+            operands(binary);
+            switch (binary.operator.type) {
+                case PLUS: code.dadd(); break;
+                case MINUS: code.dsub(); break;
+                case STAR: code.dmul(); break;
+                default:
+                    token(binary.operator);
+                    runtime("divide", "(DDLcom/gmail/coldrain608/lox/Token;)D");
+                    break;
+            }
+        }
+    }
+
+    // 两个操作数都求值之后才检查类型, 和 Interpreter 的顺序一致
+    // 左边不是 numeric 时先存进临时变量, 等右边求值之后再拆箱
+    private void operands(Expr.Binary expr) {
+        if (numeric(expr.left)) {
+            number(expr.left);
+            operand(expr.right, expr.operator);
+            return;
+        }
+        int mark = temps;
+        int left = temps++;
+        expr.left.accept(this);
+        code.astore(left);
+        if (numeric(expr.right)) {
+            int right = temps;
+            temps += 2;
+            number(expr.right);
+            code.dstore(right);
+            unbox(left, expr.operator);
+            code.dload(right);
+        } else {
+            int right = temps++;
+            expr.right.accept(this);
+            code.astore(right);
+            unbox(left, expr.operator);
+            unbox(right, expr.operator);
+        }
+        temps = mark;
+    }
+
+    private void operand(Expr expr, Token operator) {
+        if (numeric(expr)) {
+            number(expr);
+        } else {
+            expr.accept(this);
+            token(operator);
+            runtime("number", "(Ljava/lang/Object;Lcom/gmail/coldrain608/lox/Token;)D");
+        }
+    }
+
+    private void unbox(int temp, Token operator) {
+        code.aload(temp);
+        token(operator);
+        runtime("number", "(Ljava/lang/Object;Lcom/gmail/coldrain608/lox/Token;)D");
+    }
+
+    // 比较的结果为假时跳到 label, NaN 参与的比较都为假
+    private void compare(Expr.Binary expr, ClassWriter.Code.Label label) {
+        operands(expr);
+        switch (expr.operator.type) {
+            case LESS: code.dcmpg(); code.ifge(label); break;
+            case LESS_EQUAL: code.dcmpg(); code.ifgt(label); break;
+            case GREATER: code.dcmpl(); code.ifle(label); break;
+            default: code.dcmpl(); code.iflt(label); break;
+        }
+    }
+
+    // 条件为假时跳到 label, 比较运算直接用 double 比较, 不创建 Boolean
+    private void branchIfFalse(Expr condition, ClassWriter.Code.Label label) {
+        if (comparison(condition)) {
+            compare((Expr.Binary) condition, label);
+            return;
+        }
+        condition.accept(this);
+        truthy();
+        code.ifeq(label);
+    }
+
+    @Override
+    public Void visitCommaExpr(Expr.Comma expr) {
+        expr.left.accept(this);
+        code.pop();
+        expr.right.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        ClassWriter.Code.Label elseThen = code.label();
+        ClassWriter.Code.Label end = code.label();
+        branchIfFalse(expr.cond, elseThen);
+        int depth = code.stack();
+        expr.then.accept(this);
+        code.goto_(end);
+        code.stack(depth);
+        code.mark(elseThen);
+        expr.elseThen.accept(this);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        expr.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) {
+            code.aconstNull();
+        } else if (expr.value instanceof Boolean) {
+            code.getstatic("java/lang/Boolean", (Boolean) expr.value ? "TRUE" : "FALSE",
+                    "Ljava/lang/Boolean;");
+        } else {
+            constant(expr.value);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+        ClassWriter.Code.Label end = code.label();
+        expr.left.accept(this);
+        code.dup();
+        truthy();
+        if (expr.operator.type == TokenType.OR) {
+            code.ifne(end);
+        } else {
+            code.ifeq(end);
+        }
+        code.pop();
+        expr.right.accept(this);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+        expr.object.accept(this);
+        token(expr.name);
+        runtime("checkInstance", "(Ljava/lang/Object;Lcom/gmail/coldrain608/lox/Token;)Ljava/lang/Object;");
+        expr.value.accept(this);
+        constant(expr);
+        code.checkcast("com/gmail/coldrain608/lox/Expr$Set");
+        runtime("set", "(Ljava/lang/Object;Ljava/lang/Object;Lcom/gmail/coldrain608/lox/Expr$Set;)Ljava/lang/Object;");
+        return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+        variable(expr.keyword, expr.depth, expr.slot);
+        variable(expr.keyword, expr.thisDepth, expr.thisSlot);
+        token(expr.method);
+        runtime("superMethod", "(Ljava/lang/Object;Ljava/lang/Object;Lcom/gmail/coldrain608/lox/Token;)Ljava/lang/Object;");
+        return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+        variable(expr.keyword, expr.depth, expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        expr.right.accept(this);
+        if (expr.operator.type == TokenType.BANG) {
+            runtime("not", "(Ljava/lang/Object;)Ljava/lang/Object;");
+        } else {
+            token(expr.operator);
+            runtime("negate", "(Ljava/lang/Object;Lcom/gmail/coldrain608/lox/Token;)Ljava/lang/Object;");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        call(expr, false);
+        return null;
+    }
+
+    // 栈上先放被调用的值和 method 两项, 见 JitRuntime.call0
+    // 0 到 3 个参数的普通调用直接传参数, 其它情况把实参写进被调函数的帧里
+    private void call(Expr.Call expr, boolean tail) {
+        callee(expr.callee);
+        int count = expr.arguments.size();
+        if (!tail && count <= 3) {
+            for (Expr argument : expr.arguments) {
+                argument.accept(this);
+            }
+            token(expr.paren);
+            code.aload(INTERPRETER);
+            StringBuilder descriptor = new StringBuilder("(Ljava/lang/Object;Lcom/gmail/coldrain608/lox/LoxFunction;");
+            for (int i = 0; i < count; i++) descriptor.append("Ljava/lang/Object;");
+            descriptor.append("Lcom/gmail/coldrain608/lox/Token;Lcom/gmail/coldrain608/lox/Interpreter;)Ljava/lang/Object;");
+            runtime("call" + count, descriptor.toString());
+            return;
+        }
+
+        code.dup2();
+        code.iconst(count);
+        runtime("frame", "(Ljava/lang/Object;Lcom/gmail/coldrain608/lox/LoxFunction;I)[Ljava/lang/Object;");
+        for (int i = 0; i < count; i++) {
+            code.dup();
+            code.iconst(i + 1);
+            expr.arguments.get(i).accept(this);
+            code.aastore();
+        }
+        code.iconst(count);
+        token(expr.paren);
+        code.aload(INTERPRETER);
+        runtime(tail ? "tailCall" : "call", "(Ljava/lang/Object;Lcom/gmail/coldrain608/lox/LoxFunction;"
+                + "[Ljava/lang/Object;ILcom/gmail/coldrain608/lox/Token;"
+                + "Lcom/gmail/coldrain608/lox/Interpreter;)Ljava/lang/Object;");
+    }
+
+    // obj.m(...) 找到方法时留下接收者和方法, 不创建绑定后的方法, 其它情况留下被调用的值和 null
+    private void callee(Expr callee) {
+        if (!(callee instanceof Expr.Get)) {
+            callee.accept(this);
+            code.aconstNull();
+            return;
+        }
+        Expr.Get get = (Expr.Get) callee;
+        ClassWriter.Code.Label found = code.label();
+        get.object.accept(this);
+        code.dup();
+        constant(get);
+        code.checkcast("com/gmail/coldrain608/lox/Expr$Get");
+        runtime("method", "(Ljava/lang/Object;Lcom/gmail/coldrain608/lox/Expr$Get;)"
+                + "Lcom/gmail/coldrain608/lox/LoxFunction;");
+        code.dup();
+        code.ifnonnull(found);
+        code.pop();
+        constant(get);
+        code.checkcast("com/gmail/coldrain608/lox/Expr$Get");
+        code.aload(INTERPRETER);
+        runtime("get", "(Ljava/lang/Object;Lcom/gmail/coldrain608/lox/Expr$Get;"
+                + "Lcom/gmail/coldrain608/lox/Interpreter;)Ljava/lang/Object;");
+        code.aconstNull();
+        code.mark(found);
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+        expr.object.accept(this);
+        constant(expr);
+        code.checkcast("com/gmail/coldrain608/lox/Expr$Get");
+        code.aload(INTERPRETER);
+        runtime("get", "(Ljava/lang/Object;Lcom/gmail/coldrain608/lox/Expr$Get;"
+                + "Lcom/gmail/coldrain608/lox/Interpreter;)Ljava/lang/Object;");
+        return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        variable(expr.name, expr.depth, expr.slot);
+        return null;
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        for (Stmt statement : stmt.statements) {
+            statement.accept(this);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        throw new Unsupported("class declaration");
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        stmt.expression.accept(this);
+        code.pop();
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        throw new Unsupported("nested function");
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        ClassWriter.Code.Label elseBranch = code.label();
+        ClassWriter.Code.Label end = code.label();
+        branchIfFalse(stmt.condition, elseBranch);
+        stmt.thenBranch.accept(this);
+        code.goto_(end);
+        code.mark(elseBranch);
+        if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+        code.mark(end);
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        stmt.expression.accept(this);
+        runtime("print", "(Ljava/lang/Object;)V");
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        if (stmt.tail) {
+            call((Expr.Call) stmt.value, true);
+        } else if (stmt.value != null) {
+            stmt.value.accept(this);
+        } else {
+            code.aconstNull();
+        }
+        code.areturn();
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        if (stmt.initializer != null) {
+            stmt.initializer.accept(this);
+        } else {
+            code.aconstNull();
+        }
+        code.astore(local(stmt.slot));
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        ClassWriter.Code.Label start = code.label();
+        ClassWriter.Code.Label exit = code.label();
+        code.mark(start);
+        branchIfFalse(stmt.condition, exit);
+        loopExits.add(exit);
+        stmt.body.accept(this);
+        loopExits.remove(loopExits.size() - 1);
+        code.goto_(start);
+        code.mark(exit);
+        return null;
+    }
+
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        ClassWriter.Code.Label start = code.label();
+        ClassWriter.Code.Label exit = code.label();
+        if (stmt.initializer != null) stmt.initializer.accept(this);
+        code.mark(start);
+        if (stmt.condition != null) {
+            branchIfFalse(stmt.condition, exit);
+        }
+        loopExits.add(exit);
+        stmt.body.accept(this);
+        loopExits.remove(loopExits.size() - 1);
+        if (stmt.increment != null) {
+            stmt.increment.accept(this);
+            code.pop();
+        }
+        code.goto_(start);
+        code.mark(exit);
+        return null;
+    }
+
+    @Override
+    public Void visitBreakStmt(Stmt.Break stmt) {
+        if (loopExits.isEmpty()) throw new Unsupported("break outside loop");
+        code.goto_(loopExits.get(loopExits.size() - 1));
+        return null;
+    }
+}
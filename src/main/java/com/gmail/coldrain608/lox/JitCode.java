@@ -0,0 +1,7 @@
+package com.gmail.coldrain608.lox;
+
+// Jit 生成的类实现这个接口, 参数和局部变量都放在 JVM 局部变量里
+// frame 是调用方准备好的帧, slot 0 是方法的 this, 参数从 slot 1 开始
+interface JitCode {
+    Object call(Interpreter interpreter, Upvalue[] upvalues, Object[] frame);
+}
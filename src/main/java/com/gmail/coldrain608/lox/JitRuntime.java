@@ -0,0 +1,219 @@
+package com.gmail.coldrain608.lox;
+
+import java.util.Arrays;
+
+// Jit 生成的代码通过这些静态方法完成动态类型的操作
+// 语义和报错信息都要和 Interpreter 保持一致
+final class JitRuntime {
+
+    private JitRuntime() {}
+
+    static Object global(Interpreter interpreter, int slot, Token name) {
+        return interpreter.globals.getGlobal(slot, name);
+    }
+
+    static Object assignGlobal(Object value, Interpreter interpreter, int slot, Token name) {
+        interpreter.globals.assignGlobal(slot, name, value);
+        return value;
+    }
+
+    static Object assignUpvalue(Object value, Upvalue[] upvalues, int slot) {
+        upvalues[slot].set(value);
+        return value;
+    }
+
+    // 两边都是数字时直接相加, 字符串拼接和报错交给 Interpreter 的通用实现
+    static Object add(Object left, Object right, Token operator) {
+        if (left instanceof Double && right instanceof Double) {
+            return (double) left + (double) right;
+        }
+        return Interpreter.binary(operator, left, right);
+    }
+
+    // 其余的二元运算直接复用 Interpreter 的通用实现, 保证语义和报错一致
+    static Object binary(Object left, Object right, Token operator) {
+        return Interpreter.binary(operator, left, right);
+    }
+
+    // 算术表达式按 double 计算时, 叶子上的值在这里拆箱, 报错和 Interpreter 一样
+    static double number(Object value, Token operator) {
+        if (value instanceof Double) return (double) value;
+        throw new RuntimeError(operator, "Operands must be numbers.");
+    }
+
+    static double operand(Object value, Token operator) {
+        Interpreter.checkNumberOperand(operator, value);
+        return (double) value;
+    }
+
+    static double divide(double left, double right, Token operator) {
+        if (right == 0) {
+            throw new RuntimeError(operator,
+                    "Divide by zero.");
+        }
+        return left / right;
+    }
+
+    static Object negate(Object right, Token operator) {
+        Interpreter.checkNumberOperand(operator, right);
+        return -(double) right;
+    }
+
+    static Object not(Object right) {
+        return !Interpreter.isTruthy(right);
+    }
+
+    static void print(Object value) {
+        System.out.println(Interpreter.stringify(value));
+    }
+
+    // 调用点传进来被调用的值和 method, obj.m(...) 找到方法时 method 不为 null, callee 是接收者,
+    // 直接以它为 this 调用, 不创建绑定后的方法; 其它情况 method 为 null, 和 Interpreter 一样按个数选择 call0 ~ call3
+    static Object call0(Object callee, LoxFunction method, Token paren, Interpreter interpreter) {
+        try {
+            if (method == null) return callable(callee, 0, paren).call0(interpreter);
+            Interpreter.checkArity(method.arity(), 0, paren);
+            return method.invoke(interpreter, (LoxInstance) callee, method.frame());
+        } catch (StackOverflowError error) {
+            throw RuntimeError.stackOverflow(paren);
+        } catch (RuntimeError error) {
+            throw error.at(paren);
+        }
+    }
+
+    static Object call1(Object callee, LoxFunction method, Object a0, Token paren, Interpreter interpreter) {
+        try {
+            if (method == null) return callable(callee, 1, paren).call1(interpreter, a0);
+            Interpreter.checkArity(method.arity(), 1, paren);
+            Object[] frame = method.frame();
+            frame[1] = a0;
+            return method.invoke(interpreter, (LoxInstance) callee, frame);
+        } catch (StackOverflowError error) {
+            throw RuntimeError.stackOverflow(paren);
+        } catch (RuntimeError error) {
+            throw error.at(paren);
+        }
+    }
+
+    static Object call2(Object callee, LoxFunction method, Object a0, Object a1,
+                        Token paren, Interpreter interpreter) {
+        try {
+            if (method == null) return callable(callee, 2, paren).call2(interpreter, a0, a1);
+            Interpreter.checkArity(method.arity(), 2, paren);
+            Object[] frame = method.frame();
+            frame[1] = a0;
+            frame[2] = a1;
+            return method.invoke(interpreter, (LoxInstance) callee, frame);
+        } catch (StackOverflowError error) {
+            throw RuntimeError.stackOverflow(paren);
+        } catch (RuntimeError error) {
+            throw error.at(paren);
+        }
+    }
+
+    static Object call3(Object callee, LoxFunction method, Object a0, Object a1, Object a2,
+                        Token paren, Interpreter interpreter) {
+        try {
+            if (method == null) return callable(callee, 3, paren).call3(interpreter, a0, a1, a2);
+            Interpreter.checkArity(method.arity(), 3, paren);
+            Object[] frame = method.frame();
+            frame[1] = a0;
+            frame[2] = a1;
+            frame[3] = a2;
+            return method.invoke(interpreter, (LoxInstance) callee, frame);
+        } catch (StackOverflowError error) {
+            throw RuntimeError.stackOverflow(paren);
+        } catch (RuntimeError error) {
+            throw error.at(paren);
+        }
+    }
+
+    // 参数更多的调用和尾调用先取得被调函数的帧, 调用点把实参直接写进去, slot 0 留给 this
+    // 参数个数不对时帧放不下实参, 先给一个刚好装得下的数组, 求值之后再报错
+    static Object[] frame(Object callee, LoxFunction method, int count) {
+        LoxFunction function = method != null ? method
+                : callee instanceof LoxFunction ? (LoxFunction) callee : null;
+        if (function != null && function.arity() == count) return function.frame();
+        return new Object[count + 1];
+    }
+
+    static Object call(Object callee, LoxFunction method, Object[] frame, int count,
+                       Token paren, Interpreter interpreter) {
+        try {
+            if (method != null) {
+                Interpreter.checkArity(method.arity(), count, paren);
+                return method.invoke(interpreter, (LoxInstance) callee, frame);
+            }
+            if (callee instanceof LoxFunction) {
+                LoxFunction function = (LoxFunction) callee;
+                Interpreter.checkArity(function.arity(), count, paren);
+                return function.invoke(interpreter, frame);
+            }
+            return callable(callee, count, paren).callN(interpreter, Arrays.copyOfRange(frame, 1, count + 1));
+        } catch (StackOverflowError error) {
+            throw RuntimeError.stackOverflow(paren);
+        } catch (RuntimeError error) {
+            throw error.at(paren);
+        }
+    }
+
+    // 和 Interpreter.tailCall 一样只检查参数并交给 LoxFunction.invoke 的循环, 编译后的尾递归也不占 Java 栈
+    static Object tailCall(Object callee, LoxFunction method, Object[] frame, int count,
+                           Token paren, Interpreter interpreter) {
+        if (method != null) {
+            Interpreter.checkArity(method.arity(), count, paren);
+            return interpreter.tailCall(method, (LoxInstance) callee, frame);
+        }
+        if (callee instanceof LoxFunction) {
+            LoxFunction function = (LoxFunction) callee;
+            Interpreter.checkArity(function.arity(), count, paren);
+            return interpreter.tailCall(function, function.getReceiver(), frame);
+        }
+        // 类和原生函数照常调用
+        return call(callee, null, frame, count, paren, interpreter);
+    }
+
+    private static LoxCallable callable(Object callee, int count, Token paren) {
+        if (!(callee instanceof LoxCallable)) {
+            throw new RuntimeError(paren,
+                    "Can only call functions and classes.");
+        }
+        LoxCallable function = (LoxCallable) callee;
+        Interpreter.checkArity(function.arity(), count, paren);
+        return function;
+    }
+
+    // obj.m(...) 的调用点先在内联缓存里找方法, 找不到时返回 null, 由调用点按普通属性读取
+    static LoxFunction method(Object object, Expr.Get expr) {
+        return Interpreter.findMethod(expr, object);
+    }
+
+    static Object get(Object object, Expr.Get expr, Interpreter interpreter) {
+        return interpreter.getProperty(expr, object);
+    }
+
+    // 先检查对象再对右值求值, 和 Interpreter 的求值顺序一致
+    static Object checkInstance(Object object, Token name) {
+        if (!(object instanceof LoxInstance)) {
+            throw new RuntimeError(name,
+                    "Only instances have fields.");
+        }
+        return object;
+    }
+
+    static Object set(Object object, Object value, Expr.Set expr) {
+        expr.cache.setField((LoxInstance) object, expr.name.symbol, value);
+        return value;
+    }
+
+    static Object superMethod(Object klass, Object receiver, Token method) {
+        LoxClass superclass = (LoxClass) klass;
+        LoxInstance object = (LoxInstance) receiver;
+        LoxFunction function = superclass.findMethod(method.symbol);
+        if (function == null) {
+            throw new RuntimeError(method,
+                    "Undefined property '" + method.lexeme + "'.");
+        }
+        return function.bind(object);
+    }
+}
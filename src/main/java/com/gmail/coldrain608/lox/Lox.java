@@ -3,52 +3,175 @@ package com.gmail.coldrain608.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class Lox {
 
-    private static final Interpreter interpreter = new Interpreter();
+    // 解释器和 VM 的状态属于各自的 Lox 实例, 不同线程上的实例互不影响
+    private final Interpreter interpreter = new Interpreter();
+    private final VM vm = new VM();
+    // --vm: 编译成字节码交给 VM 执行, 默认仍然使用树遍历解释器
+    private boolean useVm = false;
+    // --stream: 整个文件解析完之后, 每 resolve 完一条顶层声明就马上执行, 不必等整个文件 resolve 完
+    private boolean stream = false;
+    // 超过这个大小的脚本用 mmap 读取, 小文件建立映射的开销比直接读还大
+    private static final long MAP_THRESHOLD = 1 << 20;
+    private static final int BACKTRACE_HEAD = 10;
+    private static final int BACKTRACE_TAIL = 3;
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
+    // 执行脚本的线程的栈大小, 默认按每帧 4KB 给足 Interpreter.FRAMES_MAX 帧, 可以用 -Dlox.stack 覆盖
+    // 这样递归深度只受帧预算限制, 不受主线程默认栈大小的限制
+    private static final long STACK_SIZE = Long.getLong("lox.stack", (long) Interpreter.FRAMES_MAX * 4096);
 
     public static void main(String[] args) throws IOException {
-        if (args.length > 1) {
-            System.out.println("Usage: jlox [script]");
+        Throwable[] failure = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                new Lox().start(args);
+            } catch (Throwable e) {
+                failure[0] = e;
+            }
+        }, "lox", STACK_SIZE);
+        thread.start();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        if (failure[0] instanceof IOException) throw (IOException) failure[0];
+        if (failure[0] instanceof RuntimeException) throw (RuntimeException) failure[0];
+        if (failure[0] instanceof Error) throw (Error) failure[0];
+    }
+
+    private void start(String[] args) throws IOException {
+        int argc = 0;
+        for (; argc < args.length; argc++) {
+            if (args[argc].equals("--vm")) {
+                useVm = true;
+            } else if (args[argc].equals("--stream")) {
+                stream = true;
+            } else {
+                break;
+            }
+        }
+        if (args.length - argc > 1) {
+            System.out.println("Usage: jlox [--vm] [--stream] [script]");
             System.exit(64);
-        } else if (args.length == 1) {
-            runFile(args[0]);
+        } else if (args.length - argc == 1) {
+            runFile(args[argc]);
         } else {
             runPrompt();
         }
     }
 
-    private static void run(String source) {
+    private void run(CharSequence source) {
+        List<Stmt> statements = parse(source);
+        if (statements == null) return;
+        execute(statements);
+    }
+
+    // 扫描, 解析, resolve 并优化, 有错误时返回 null
+    private List<Stmt> parse(CharSequence source) {
         Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
+        TokenBuffer tokens = scanner.scanTokens();
 
         Parser parser = new Parser(tokens);
         List<Stmt> statements = parser.parse();
 
         // Stop if there was a syntax error.
-        if (hadError) return;
-        Resolver resolver = new Resolver(interpreter);
+        if (hadError) return null;
+        Resolver resolver = new Resolver();
         resolver.resolve(statements);
+        if (hadError) return null;
+        return new Optimizer().optimize(statements);
+    }
+
+    private void execute(List<Stmt> statements) {
+        if (useVm) {
+            Obj.Function script = new Compiler(vm).compile(statements);
+            if (hadError) return;
+            vm.interpret(script);
+        } else {
+            interpreter.interpret(statements);
+        }
+    }
+
+    // 先把整个文件解析完, 有语法错误时和整个文件一起处理时一样什么都不执行, 只报告语法错误
+    // 之后每条顶层语句 resolve 完就马上执行, 不必等整个文件 resolve 完,
+    // 所以后面语句的 Resolver 错误要等前面的语句执行之后才能发现
+    // 出现任何错误之后不再执行, 但仍然继续 resolve 到结尾, 报告的错误和整个文件一起处理时一样
+    private void runStream(CharSequence source) {
+        // 扫描和解析交替进行, 不必先扫描完整个文件
+        Parser parser = new Parser(new Scanner(source).streamTokens());
+        List<Stmt> statements = new ArrayList<>();
+        while (!parser.isDone()) {
+            Stmt statement = parser.next();
+            if (statement != null) statements.add(statement);
+        }
         if (hadError) return;
-        interpreter.interpret(statements);
+
+        Resolver resolver = new Resolver();
+        Optimizer optimizer = new Optimizer();
+        for (Stmt statement : statements) {
+            List<Stmt> single = Collections.singletonList(statement);
+            resolver.resolve(single);
+            if (hadError || hadRuntimeError) continue;
+            single = optimizer.optimize(single);
+            if (useVm) {
+                Obj.Function script = new Compiler(vm).compile(single);
+                if (hadError) continue;
+                vm.interpret(script);
+            } else {
+                interpreter.interpret(single);
+            }
+        }
     }
 
-    private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+    // 缓存命中时直接执行缓存里的语法树, 不读取脚本的内容
+    // 没有命中时照常解析, 没有错误才写入缓存
+    private void runCached(Path file) throws IOException {
+        Path cache = AstCache.path(file);
+        List<Stmt> statements = AstCache.load(cache);
+        if (statements == null) {
+            statements = parse(read(file));
+            if (statements == null) return;
+            AstCache.store(cache, statements);
+        }
+        execute(statements);
+    }
+
+    private static CharSequence read(Path file) throws IOException {
+        if (Files.size(file) >= MAP_THRESHOLD) {
+            // 大文件直接映射到内存, 省去读取和解码时的两次复制
+            return MappedSource.map(file);
+        }
+        byte[] bytes = Files.readAllBytes(file);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void runFile(String path) throws IOException {
+        Path file = Paths.get(path);
+        if (stream) {
+            runStream(read(file));
+        } else if (AstCache.isEnabled()) {
+            runCached(file);
+        } else {
+            run(read(file));
+        }
 
         if (hadError) System.exit(65);
         if (hadRuntimeError) System.exit(70);
     }
 
-    private static void runPrompt() throws IOException {
+    private void runPrompt() throws IOException {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
 
@@ -74,8 +197,22 @@ public class Lox {
     }
 
     static void runtimeError(RuntimeError error) {
-        System.err.println(error.getMessage() +
-                "\n[line " + error.token.line + "]");
+        List<String> backtrace = error.backtrace;
+        if (backtrace == null || backtrace.isEmpty()) {
+            System.err.println(error.getMessage() +
+                    "\n[line " + error.token.line + "]");
+        } else {
+            // 栈溢出时的调用栈很长, 只打印最里面和最外面的几层
+            System.err.println(error.getMessage());
+            int size = backtrace.size();
+            for (int i = 0; i < size; i++) {
+                if (size > BACKTRACE_HEAD + BACKTRACE_TAIL && i == BACKTRACE_HEAD) {
+                    System.err.println("[... " + (size - BACKTRACE_HEAD - BACKTRACE_TAIL) + " more frames]");
+                    i = size - BACKTRACE_TAIL;
+                }
+                System.err.println(backtrace.get(i));
+            }
+        }
         hadRuntimeError = true;
     }
 
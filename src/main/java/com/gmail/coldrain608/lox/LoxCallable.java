@@ -1,9 +1,27 @@
 package com.gmail.coldrain608.lox;
 
-import java.util.List;
-
+// 调用点先按 arity() 检查参数个数, 再根据个数选择 call0 ~ call3 或 callN,
+// 实现里不需要再检查, 也不需要为参数创建 List
 interface LoxCallable {
+    Object[] NO_ARGUMENTS = new Object[0];
+
     int arity();
 
-    Object call(Interpreter interpreter, List<Object> arguments);
+    Object callN(Interpreter interpreter, Object[] arguments);
+
+    default Object call0(Interpreter interpreter) {
+        return callN(interpreter, NO_ARGUMENTS);
+    }
+
+    default Object call1(Interpreter interpreter, Object a0) {
+        return callN(interpreter, new Object[]{a0});
+    }
+
+    default Object call2(Interpreter interpreter, Object a0, Object a1) {
+        return callN(interpreter, new Object[]{a0, a1});
+    }
+
+    default Object call3(Interpreter interpreter, Object a0, Object a1, Object a2) {
+        return callN(interpreter, new Object[]{a0, a1, a2});
+    }
 }
@@ -1,21 +1,25 @@
 package com.gmail.coldrain608.lox;
 
-import java.util.List;
+import java.util.HashMap;
 import java.util.Map;
 
 class LoxClass extends LoxInstance implements LoxCallable {
     final String name;
     final LoxClass superclass;
     // 替换部分开始
-    private final Map<String, LoxFunction> methods;
-    private final Map<String, LoxFunction> klassMethods;
+    // 包含继承来的方法, 查找时不用再沿着 superclass 逐层往上找
+    private final Map<Symbol, LoxFunction> methods;
+    private final Map<Symbol, LoxFunction> klassMethods;
+    // 方法表创建之后不再改变, init 只需要查找一次
+    private final LoxFunction initializer;
 
-    LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods, Map<String, LoxFunction> klassMethods) {
+    LoxClass(String name, LoxClass superclass, Map<Symbol, LoxFunction> methods, Map<Symbol, LoxFunction> klassMethods) {
         super(null);
         this.superclass = superclass;
         this.name = name;
-        this.methods = methods;
+        this.methods = flatten(superclass, methods);
         this.klassMethods = klassMethods;
+        this.initializer = findMethod(Symbol.INIT);
     }
 
     @Override
@@ -26,23 +30,30 @@ class LoxClass extends LoxInstance implements LoxCallable {
         try {
             return super.get(name);
         } catch (RuntimeError error) {
-            if (this.klassMethods.containsKey(name.lexeme)) {
-                return this.klassMethods.get(name.lexeme).bind(this);
+            LoxFunction method = this.klassMethods.get(name.symbol);
+            if (method != null) {
+                return method.bind(this);
             }
         }
         throw new RuntimeError(name,
                 "Undefined property '" + name.lexeme + "'.");
     }
 
-    LoxFunction findMethod(String name) {
-        if (methods.containsKey(name)) {
-            return methods.get(name);
-        }
-        if (superclass != null) {
-            return superclass.findMethod(name);
-        }
+    // 和 VM 的 INHERIT 一样, 类定义时把父类展开后的方法表复制下来, 再用自己的方法覆盖
+    // 父类的方法表同样不会再变, 复制之后不需要同步
+    private static Map<Symbol, LoxFunction> flatten(LoxClass superclass, Map<Symbol, LoxFunction> methods) {
+        if (superclass == null) return methods;
+        Map<Symbol, LoxFunction> flattened = new HashMap<>(superclass.methods);
+        flattened.putAll(methods);
+        return flattened;
+    }
+
+    LoxFunction findMethod(Symbol name) {
+        return methods.get(name);
+    }
 
-        return null;
+    LoxFunction getInitializer() {
+        return initializer;
     }
 
     @Override
@@ -52,18 +63,52 @@ class LoxClass extends LoxInstance implements LoxCallable {
 
     @Override
     public int arity() {
-        LoxFunction initializer = findMethod("init");
         if (initializer == null) return 0;
         return initializer.arity();
     }
 
+    // 参数个数已经在调用点检查过, 有参数时一定有 init
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
+    public Object call0(Interpreter interpreter) {
+        return construct(interpreter, initializer == null ? null : initializer.frame());
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a0) {
+        Object[] frame = initializer.frame();
+        frame[1] = a0;
+        return construct(interpreter, frame);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a0, Object a1) {
+        Object[] frame = initializer.frame();
+        frame[1] = a0;
+        frame[2] = a1;
+        return construct(interpreter, frame);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a0, Object a1, Object a2) {
+        Object[] frame = initializer.frame();
+        frame[1] = a0;
+        frame[2] = a1;
+        frame[3] = a2;
+        return construct(interpreter, frame);
+    }
+
+    @Override
+    public Object callN(Interpreter interpreter, Object[] arguments) {
+        if (initializer == null) return construct(interpreter, null);
+        return construct(interpreter, initializer.frame(arguments));
+    }
+
+    // frame 是 init 的新帧, 参数已经放好
+    Object construct(Interpreter interpreter, Object[] frame) {
         LoxInstance instance = new LoxInstance(this);
-        LoxFunction initializer = findMethod("init");
         if (initializer != null) {
-            initializer.bind(instance).call(interpreter, arguments);
+            initializer.invoke(interpreter, instance, frame);
         }
         return instance;
     }
-}
\ No newline at end of file
+}
@@ -1,17 +1,24 @@
 package com.gmail.coldrain608.lox;
 
-import java.util.List;
-
 public class LoxFunction implements LoxCallable {
 
     private final Stmt.Function declaration;
-    private final Environment closure;
+    // 只保存函数用到的外层变量, 不再引用外层的整条 Environment 链
+    private final Upvalue[] upvalues;
+    // bind 之后的方法记住 this, 调用时放进帧的 slot 0
+    private final LoxInstance receiver;
     private final boolean isInitializer;
     private final boolean isGetter;
 
-    LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer, boolean isGetter) {
+    LoxFunction(Stmt.Function declaration, Upvalue[] upvalues, boolean isInitializer, boolean isGetter) {
+        this(declaration, upvalues, null, isInitializer, isGetter);
+    }
+
+    private LoxFunction(Stmt.Function declaration, Upvalue[] upvalues, LoxInstance receiver,
+                        boolean isInitializer, boolean isGetter) {
         this.isInitializer = isInitializer;
-        this.closure = closure;
+        this.upvalues = upvalues;
+        this.receiver = receiver;
         this.declaration = declaration;
         this.isGetter = isGetter;
     }
@@ -22,27 +29,106 @@ public class LoxFunction implements LoxCallable {
     }
 
     @Override
-    public Object call(Interpreter interpreter, List<Object> arguments) {
-        Environment environment = new Environment(closure);
-        for (int i = 0; i < declaration.params.size(); i++) {
-            environment.define(declaration.params.get(i).lexeme,
-                    arguments.get(i));
-        }
+    public Object call0(Interpreter interpreter) {
+        return invoke(interpreter, receiver, frame());
+    }
+
+    @Override
+    public Object call1(Interpreter interpreter, Object a0) {
+        Object[] frame = frame();
+        frame[1] = a0;
+        return invoke(interpreter, receiver, frame);
+    }
+
+    @Override
+    public Object call2(Interpreter interpreter, Object a0, Object a1) {
+        Object[] frame = frame();
+        frame[1] = a0;
+        frame[2] = a1;
+        return invoke(interpreter, receiver, frame);
+    }
+
+    @Override
+    public Object call3(Interpreter interpreter, Object a0, Object a1, Object a2) {
+        Object[] frame = frame();
+        frame[1] = a0;
+        frame[2] = a1;
+        frame[3] = a2;
+        return invoke(interpreter, receiver, frame);
+    }
 
+    @Override
+    public Object callN(Interpreter interpreter, Object[] arguments) {
+        return invoke(interpreter, receiver, frame(arguments));
+    }
+
+    // 新的帧, slot 0 是 this, 参数从 slot 1 开始
+    // Interpreter 的调用点可以直接把参数求值到帧里, 再交给 invoke, 不需要参数列表
+    Object[] frame() {
+        return new Object[declaration.slots];
+    }
+
+    Object[] frame(Object[] arguments) {
+        Object[] frame = frame();
+        System.arraycopy(arguments, 0, frame, 1, arguments.length);
+        return frame;
+    }
+
+    Object invoke(Interpreter interpreter, Object[] frame) {
+        return invoke(interpreter, receiver, frame);
+    }
+
+    // 函数体以尾调用结束时换成被调函数接着循环, 不在 Java 栈上嵌套, 也不多占一帧
+    // 超出帧预算时和 Java 栈用完一样抛出 StackOverflowError, 由调用点换成带调用栈的 Lox 运行时错误
+    Object invoke(Interpreter interpreter, LoxInstance receiver, Object[] frame) {
+        if (interpreter.frames == Interpreter.FRAMES_MAX) throw new StackOverflowError();
+        interpreter.frames++;
         try {
-            interpreter.executeBlock(declaration.body, environment);
-        } catch (Return returnValue) {
-            if (isInitializer) return closure.getAt(0, "this");
-            return returnValue.value;
+            LoxFunction function = this;
+            while (true) {
+                Stmt.Function declaration = function.declaration;
+                try {
+                    frame[0] = receiver;
+                    JitCode compiled = declaration.compiled;
+                    if (compiled != null) {
+                        Object result = compiled.call(interpreter, function.upvalues, frame);
+                        if (function.isInitializer) return receiver;
+                        if (result != Interpreter.TAIL_CALL) return result;
+                    } else {
+                        // 同一个声明的调用次数达到阈值时提交给 Jit 在后台编译
+                        if (declaration.calls < Jit.THRESHOLD && ++declaration.calls == Jit.THRESHOLD) {
+                            Jit.submit(declaration);
+                        }
+
+                        Environment environment = new Environment(frame);
+                        Interpreter.Completion completion = interpreter.executeBlock(declaration.body, environment, function.upvalues);
+                        if (function.isInitializer) return receiver;
+                        if (completion != Interpreter.Completion.RETURN) return null;
+                        Object result = interpreter.takeReturnValue();
+                        if (result != Interpreter.TAIL_CALL) return result;
+                    }
+                } catch (RuntimeError error) {
+                    throw error.unwind(declaration.name.lexeme);
+                }
+
+                function = interpreter.tailFunction;
+                receiver = interpreter.tailReceiver;
+                frame = interpreter.tailFrame;
+                interpreter.tailFunction = null;
+                interpreter.tailReceiver = null;
+                interpreter.tailFrame = null;
+            }
+        } finally {
+            interpreter.frames--;
         }
-        if (isInitializer) return closure.getAt(0, "this");
-        return null;
     }
 
     LoxFunction bind(LoxInstance instance) {
-        Environment environment = new Environment(closure);
-        environment.define("this", instance);
-        return new LoxFunction(declaration, environment, isInitializer, isGetter);
+        return new LoxFunction(declaration, upvalues, instance, isInitializer, isGetter);
+    }
+
+    LoxInstance getReceiver() {
+        return receiver;
     }
 
     public boolean isGetter() {
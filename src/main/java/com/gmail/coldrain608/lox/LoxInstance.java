@@ -1,11 +1,14 @@
 package com.gmail.coldrain608.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class LoxInstance {
+    private static final Object[] NO_FIELDS = new Object[0];
+
     private final LoxClass klass;
-    private final Map<String, Object> fields = new HashMap<>();
+    // 字段名到 slot 的映射由 Shape 共享, 实例只保存字段值
+    private Shape shape = Shape.EMPTY;
+    private Object[] fields = NO_FIELDS;
 
     // kclass 为 null 时为 metaClass 的 instance
     LoxInstance(LoxClass klass) {
@@ -13,11 +16,12 @@ class LoxInstance {
     }
 
     Object get(Token name) {
-        if (fields.containsKey(name.lexeme)) {
-            return fields.get(name.lexeme);
+        int slot = shape.slot(name.symbol);
+        if (slot >= 0) {
+            return fields[slot];
         }
         if (klass != null) {
-            LoxFunction method = klass.findMethod(name.lexeme);
+            LoxFunction method = klass.findMethod(name.symbol);
             if (method != null) return method.bind(this);
         }
 
@@ -26,7 +30,29 @@ class LoxInstance {
     }
 
     void set(Token name, Object value) {
-        fields.put(name.lexeme, value);
+        int slot = shape.slot(name.symbol);
+        if (slot >= 0) {
+            fields[slot] = value;
+        } else {
+            setField(shape.add(name.symbol), shape.size(), value);
+        }
+    }
+
+    Shape getShape() {
+        return shape;
+    }
+
+    Object getField(int slot) {
+        return fields[slot];
+    }
+
+    // shape 与当前不同时表示添加了新字段, 数组按新 shape 的大小扩容
+    void setField(Shape shape, int slot, Object value) {
+        if (shape != this.shape) {
+            fields = Arrays.copyOf(fields, shape.size());
+            this.shape = shape;
+        }
+        fields[slot] = value;
     }
 
     public LoxClass getKlass() {
@@ -38,4 +64,3 @@ class LoxInstance {
         return klass.name + " instance";
     }
 }
-
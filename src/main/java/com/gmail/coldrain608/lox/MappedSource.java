@@ -0,0 +1,169 @@
+package com.gmail.coldrain608.lox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// 把脚本文件映射到内存交给 Scanner, 不需要先读成 byte[] 再解码成 String
+// 只有全是 ASCII 的文件才能每个字节当作一个字符, 否则多字节字符会被拆成几个字符,
+// 出现在字符串外面时每个字节都报一次错, 所以 map 遇到非 ASCII 字节时交给 Decoded 按 UTF-8 分段解码,
+// 和读成 String 时一样把非法的字节序列换成替换字符
+final class MappedSource implements CharSequence {
+    private final ByteBuffer bytes;
+    private final int offset;
+    private final int length;
+
+    private MappedSource(ByteBuffer bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    static CharSequence map(Path path) throws IOException {
+        ByteBuffer bytes;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Script too large: " + path);
+            }
+            // 映射在 channel 关闭之后仍然有效
+            bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        if (!isAscii(bytes)) return new Decoded(bytes);
+        return new MappedSource(bytes, 0, bytes.limit());
+    }
+
+    private static boolean isAscii(ByteBuffer bytes) {
+        int limit = bytes.limit();
+        // 一次检查 8 个字节的最高位
+        int i = 0;
+        for (; i + 8 <= limit; i += 8) {
+            if ((bytes.getLong(i) & 0x8080808080808080L) != 0) return false;
+        }
+        for (; i < limit; i++) {
+            if (bytes.get(i) < 0) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return (char) (bytes.get(offset + index) & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return new MappedSource(bytes, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        byte[] copy = new byte[length];
+        bytes.get(offset, copy);
+        // 内容只有 ASCII, 按 Latin-1 构造 String 就是直接复制
+        return new String(copy, StandardCharsets.ISO_8859_1);
+    }
+
+    // 按 UTF-8 分段解码, 每段最多 WINDOW 个字符, 内存里只保留最近用到的一段
+    // 创建时先完整解码一遍, 只记下每段开头的字节位置和字符位置, 之后 charAt 落在哪段就重新解码哪段
+    // 每段都从一个完整字符的边界开始, UTF-8 的解码器没有跨字符的状态, 所以重新解码的结果和第一遍相同
+    private static final class Decoded implements CharSequence {
+        private static final int WINDOW = 1 << 16;
+
+        private final ByteBuffer bytes;
+        private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        // 第 i 段从字节 byteStarts[i], 字符 charStarts[i] 开始, charStarts 最后多放一个总长度
+        private int[] byteStarts = new int[16];
+        private int[] charStarts = new int[17];
+        private int windows = 0;
+        private final int length;
+
+        private final CharBuffer window = CharBuffer.allocate(WINDOW);
+        private int windowStart = 0;
+        private int windowEnd = 0;
+
+        Decoded(ByteBuffer bytes) {
+            this.bytes = bytes;
+            int chars = 0;
+            ByteBuffer in = bytes.duplicate();
+            while (true) {
+                if (windows == byteStarts.length) {
+                    byteStarts = Arrays.copyOf(byteStarts, windows * 2);
+                    charStarts = Arrays.copyOf(charStarts, windows * 2 + 1);
+                }
+                byteStarts[windows] = in.position();
+                charStarts[windows] = chars;
+                windows++;
+                CoderResult result = decode(in);
+                chars += window.position();
+                if (result.isUnderflow()) break;
+            }
+            charStarts[windows] = chars;
+            length = chars;
+        }
+
+        private CoderResult decode(ByteBuffer in) {
+            window.clear();
+            decoder.reset();
+            return decoder.decode(in, window, true);
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < windowStart || index >= windowEnd) load(index);
+            return window.get(index - windowStart);
+        }
+
+        private void load(int index) {
+            if (index < 0 || index >= length) throw new IndexOutOfBoundsException(index);
+            // 找到 charStarts[i] <= index 的最后一段
+            int low = 0;
+            int high = windows - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (charStarts[middle] <= index) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            decode(bytes.duplicate().position(byteStarts[low]));
+            windowStart = charStarts[low];
+            windowEnd = windowStart + window.position();
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            StringBuilder builder = new StringBuilder(end - start);
+            for (int i = start; i < end; i++) {
+                builder.append(charAt(i));
+            }
+            return builder.toString();
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, length).toString();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.gmail.coldrain608.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// 字节码虚拟机的运行时对象
+// 数字, 字符串, 布尔和 nil 直接用 Double, String, Boolean 和 null 表示
+abstract class Obj {
+
+    static class Function extends Obj {
+        final String name;
+        final Chunk chunk = new Chunk();
+        int arity;
+        int upvalueCount;
+        boolean isGetter;
+
+        Function(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            if (name == null) return "<script>";
+            return "<fn " + name + ">";
+        }
+    }
+
+    static class Native extends Obj {
+        interface Body {
+            Object call(Object[] args, int offset);
+        }
+
+        final int arity;
+        final Body body;
+
+        Native(int arity, Body body) {
+            this.arity = arity;
+            this.body = body;
+        }
+
+        @Override
+        public String toString() {
+            return "<native fn>";
+        }
+    }
+
+    static class Closure extends Obj {
+        final Function function;
+        final Upvalue[] upvalues;
+
+        Closure(Function function) {
+            this.function = function;
+            this.upvalues = new Upvalue[function.upvalueCount];
+        }
+
+        @Override
+        public String toString() {
+            return function.toString();
+        }
+    }
+
+    // 变量还在栈上时 slot 指向栈, 离开作用域后值搬到 closed 里
+    static class Upvalue extends Obj {
+        int slot;
+        Object closed;
+        Upvalue next;
+
+        Upvalue(int slot) {
+            this.slot = slot;
+        }
+    }
+
+    static class Instance extends Obj {
+        private static final Object[] NO_FIELDS = new Object[0];
+
+        final Class klass;
+        // 和 LoxInstance 一样, 字段布局由 Shape 共享, 实例只保存字段值
+        Shape shape = Shape.EMPTY;
+        Object[] fields = NO_FIELDS;
+
+        // klass 为 null 时为 metaClass 的 instance
+        Instance(Class klass) {
+            this.klass = klass;
+        }
+
+        void setField(Symbol name, Object value) {
+            int slot = shape.slot(name);
+            if (slot < 0) {
+                slot = shape.size();
+                shape = shape.add(name);
+                fields = Arrays.copyOf(fields, shape.size());
+            }
+            fields[slot] = value;
+        }
+
+        @Override
+        public String toString() {
+            return klass.name + " instance";
+        }
+    }
+
+    static class Class extends Instance {
+        final String name;
+        // 继承时把父类的方法复制下来, 查找时不用沿着继承链往上找
+        final Map<Symbol, Closure> methods = new HashMap<>();
+        final Map<Symbol, Closure> klassMethods = new HashMap<>();
+
+        Class(String name) {
+            super(null);
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    static class BoundMethod extends Obj {
+        final Object receiver;
+        final Closure method;
+
+        BoundMethod(Object receiver, Closure method) {
+            this.receiver = receiver;
+            this.method = method;
+        }
+
+        @Override
+        public String toString() {
+            return method.toString();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.gmail.coldrain608.lox;
+
+// 字节码指令, 操作数紧跟在指令后面, 指令和每个操作数各占 Chunk.code 里的一个 int
+final class OpCode {
+    static final int CONSTANT = 0;          // 常量下标
+    static final int NIL = 1;
+    static final int TRUE = 2;
+    static final int FALSE = 3;
+    static final int POP = 4;
+    static final int GET_LOCAL = 5;         // slot
+    static final int SET_LOCAL = 6;         // slot
+    static final int GET_GLOBAL = 7;        // 全局变量下标
+    static final int DEFINE_GLOBAL = 8;     // 全局变量下标
+    static final int SET_GLOBAL = 9;        // 全局变量下标
+    static final int GET_UPVALUE = 10;      // upvalue 下标
+    static final int SET_UPVALUE = 11;      // upvalue 下标
+    static final int GET_PROPERTY = 12;     // 名字常量
+    static final int SET_PROPERTY = 13;     // 名字常量
+    static final int GET_SUPER = 14;        // 名字常量
+    static final int EQUAL = 15;
+    static final int NOT_EQUAL = 16;
+    static final int GREATER = 17;
+    static final int GREATER_EQUAL = 18;
+    static final int LESS = 19;
+    static final int LESS_EQUAL = 20;
+    static final int ADD = 21;
+    static final int SUBTRACT = 22;
+    static final int MULTIPLY = 23;
+    static final int DIVIDE = 24;
+    static final int NOT = 25;
+    static final int NEGATE = 26;
+    static final int PRINT = 27;
+    static final int JUMP = 28;             // 跳转目标
+    static final int JUMP_IF_FALSE = 29;    // 跳转目标, 不弹出条件, and 和 or 用
+    static final int LOOP = 30;             // 跳转目标
+    static final int CALL = 31;             // 参数个数
+    static final int INVOKE = 32;           // 方法名常量, 参数个数
+    static final int SUPER_INVOKE = 33;     // 方法名常量, 参数个数
+    static final int CLOSURE = 34;          // 函数常量, 每个 upvalue 再跟 isLocal, index
+    static final int CLOSE_UPVALUE = 35;
+    static final int RETURN = 36;
+    static final int CLASS = 37;            // 类名常量
+    static final int INHERIT = 38;
+    static final int METHOD = 39;           // 方法名常量
+    static final int CLASS_METHOD = 40;     // 方法名常量
+    static final int NUMBER = 41;           // 数字的高 32 位, 低 32 位, 不放进常量池
+    static final int POP_JUMP_IF_FALSE = 42; // 跳转目标, 先弹出条件, if 和循环用
+
+    // 下面的指令把常见的几条指令合成一条, 少分派几次
+    // 左边是局部变量, 右边是数字字面量: slot, 数字的高 32 位, 低 32 位
+    static final int ADD_LOCAL_NUMBER = 43;
+    static final int SUBTRACT_LOCAL_NUMBER = 44;
+    static final int MULTIPLY_LOCAL_NUMBER = 45;
+    static final int GREATER_LOCAL_NUMBER = 46;
+    static final int GREATER_EQUAL_LOCAL_NUMBER = 47;
+    static final int LESS_LOCAL_NUMBER = 48;
+    static final int LESS_EQUAL_LOCAL_NUMBER = 49;
+    // 两边都是局部变量: 左边的 slot, 右边的 slot
+    static final int ADD_LOCAL_LOCAL = 50;
+    static final int SUBTRACT_LOCAL_LOCAL = 51;
+    static final int MULTIPLY_LOCAL_LOCAL = 52;
+    static final int LESS_LOCAL_LOCAL = 53;
+    static final int LESS_EQUAL_LOCAL_LOCAL = 54;
+    static final int SET_LOCAL_POP = 55;     // slot, 赋值语句的值用不到, 不留在栈上
+
+    // return f(...) 的尾调用, 操作数和 CALL, INVOKE, SUPER_INVOKE 相同, 后面总跟着一条 RETURN
+    // 被调用的是 Lox 函数时复用当前的 CallFrame, 否则和普通调用一样, 由后面的 RETURN 返回结果
+    static final int TAIL_CALL = 56;
+    static final int TAIL_INVOKE = 57;
+    static final int TAIL_SUPER_INVOKE = 58;
+
+    private OpCode() {}
+}
@@ -0,0 +1,352 @@
+package com.gmail.coldrain608.lox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// 在 Resolver 之后, 执行之前改写语法树: 折叠常量子表达式, 删掉条件为常量的分支
+// 会在运行时报错的表达式不折叠, 错误仍然在运行到那里时由原来的 token 报告
+// 子节点没有变化时返回原来的节点, 重新创建节点时带上 Resolver 回填的字段
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+
+    List<Stmt> optimize(List<Stmt> statements) {
+        return statements(statements);
+    }
+
+    // 被删掉的语句不放进列表
+    private List<Stmt> statements(List<Stmt> statements) {
+        List<Stmt> result = null;
+        for (int i = 0; i < statements.size(); i++) {
+            Stmt statement = statements.get(i);
+            Stmt optimized = statement.accept(this);
+            if (optimized != statement && result == null) {
+                result = new ArrayList<>(statements.subList(0, i));
+            }
+            if (result != null && optimized != null) result.add(optimized);
+        }
+        return result == null ? statements : result;
+    }
+
+    // if, while 和 for 的分支不能为空, 被删掉时换成空的 Block
+    private Stmt branch(Stmt stmt) {
+        if (stmt == null) return null;
+        Stmt optimized = stmt.accept(this);
+        if (optimized == null) return empty();
+        return optimized;
+    }
+
+    // 空的 Block 没有变量, 结束时不需要关闭任何 upvalue
+    private static Stmt.Block empty() {
+        Stmt.Block block = new Stmt.Block(Collections.emptyList());
+        block.slots = Resolver.NO_FRAME;
+        block.base = Integer.MAX_VALUE;
+        return block;
+    }
+
+    private Expr optimize(Expr expr) {
+        if (expr == null) return null;
+        return expr.accept(this);
+    }
+
+    private static boolean isConstant(Expr expr) {
+        return expr instanceof Expr.Literal;
+    }
+
+    private static Object value(Expr expr) {
+        return ((Expr.Literal) expr).value;
+    }
+
+    // 结果一定是数字的表达式: 数字字面量, 取负, 减乘除, 以及两边都是数字的加法
+    // 取负和减乘除遇到非数字时会报错, 所以能求出值时一定是数字
+    private static boolean isNumber(Expr expr) {
+        if (expr instanceof Expr.Literal) return value(expr) instanceof Double;
+        if (expr instanceof Expr.Grouping) return isNumber(((Expr.Grouping) expr).expression);
+        if (expr instanceof Expr.Unary) return ((Expr.Unary) expr).operator.type == TokenType.MINUS;
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary) expr;
+            switch (binary.operator.type) {
+                case MINUS:
+                case STAR:
+                case SLASH:
+                    return true;
+                case PLUS:
+                    return isNumber(binary.left) && isNumber(binary.right);
+            }
+        }
+        return false;
+    }
+
+    private static boolean isNumber(Expr expr, double value) {
+        return isConstant(expr) && value(expr) instanceof Double && (double) value(expr) == value;
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+        Expr value = optimize(expr.value);
+        if (value == expr.value) return expr;
+        Expr.Assign assign = new Expr.Assign(expr.name, value);
+        assign.depth = expr.depth;
+        assign.slot = expr.slot;
+        return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+
+        if (isConstant(left) && isConstant(right)) {
+            try {
+                return new Expr.Literal(Interpreter.binary(expr.operator, value(left), value(right)));
+            } catch (RuntimeError error) {
+                // 留到运行时报错
+            }
+        }
+
+        // x * 1, 1 * x, x / 1 和 x - 0 对任何数字都等于 x, 包括 NaN 和 -0
+        // x + 0 在 x 为 -0 时结果是 0, 不能化简
+        if (isNumber(left) && isNumber(right)) {
+            switch (expr.operator.type) {
+                case STAR:
+                    if (isNumber(right, 1)) return left;
+                    if (isNumber(left, 1)) return right;
+                    break;
+                case SLASH:
+                    if (isNumber(right, 1)) return left;
+                    break;
+                case MINUS:
+                    if (isNumber(right, 0)) return left;
+                    break;
+            }
+        }
+
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Binary(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCommaExpr(Expr.Comma expr) {
+        Expr left = optimize(expr.left);
+        Expr right = optimize(expr.right);
+        // 常量没有副作用, 可以直接丢掉
+        if (isConstant(left)) return right;
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Comma(left, right);
+    }
+
+    @Override
+    public Expr visitTernaryExpr(Expr.Ternary expr) {
+        Expr cond = optimize(expr.cond);
+        if (isConstant(cond)) {
+            return Interpreter.isTruthy(value(cond)) ? optimize(expr.then) : optimize(expr.elseThen);
+        }
+        Expr then = optimize(expr.then);
+        Expr elseThen = optimize(expr.elseThen);
+        if (cond == expr.cond && then == expr.then && elseThen == expr.elseThen) return expr;
+        return new Expr.Ternary(cond, then, elseThen);
+    }
+
+    // 括号在解析之后就没有用了
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+        return optimize(expr.expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+        Expr left = optimize(expr.left);
+        if (isConstant(left)) {
+            boolean truthy = Interpreter.isTruthy(value(left));
+            if (expr.operator.type == TokenType.OR ? truthy : !truthy) return left;
+            return optimize(expr.right);
+        }
+        Expr right = optimize(expr.right);
+        if (left == expr.left && right == expr.right) return expr;
+        return new Expr.Logical(left, expr.operator, right);
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+        Expr object = optimize(expr.object);
+        Expr value = optimize(expr.value);
+        if (object == expr.object && value == expr.value) return expr;
+        return new Expr.Set(object, expr.name, value);
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+        return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+        Expr right = optimize(expr.right);
+        if (isConstant(right)) {
+            Object value = value(right);
+            if (expr.operator.type == TokenType.BANG) return new Expr.Literal(!Interpreter.isTruthy(value));
+            if (value instanceof Double) return new Expr.Literal(-(double) value);
+        }
+        if (right == expr.right) return expr;
+        return new Expr.Unary(expr.operator, right);
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+        Expr callee = optimize(expr.callee);
+        boolean changed = callee != expr.callee;
+        List<Expr> arguments = new ArrayList<>(expr.arguments.size());
+        for (Expr argument : expr.arguments) {
+            Expr optimized = optimize(argument);
+            changed |= optimized != argument;
+            arguments.add(optimized);
+        }
+        if (!changed) return expr;
+        return new Expr.Call(callee, expr.paren, arguments);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+        Expr object = optimize(expr.object);
+        if (object == expr.object) return expr;
+        return new Expr.Get(object, expr.name);
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+        return expr;
+    }
+
+    @Override
+    public Stmt visitBlockStmt(Stmt.Block stmt) {
+        List<Stmt> statements = statements(stmt.statements);
+        if (statements == stmt.statements) return stmt;
+        Stmt.Block block = new Stmt.Block(statements);
+        block.slots = stmt.slots;
+        block.base = stmt.base;
+        return block;
+    }
+
+    @Override
+    public Stmt visitClassStmt(Stmt.Class stmt) {
+        List<Stmt.Function> methods = functions(stmt.methods);
+        List<Stmt.Function> klassMethods = functions(stmt.klassMethods);
+        if (methods == stmt.methods && klassMethods == stmt.klassMethods) return stmt;
+        Stmt.Class klass = new Stmt.Class(stmt.name, stmt.superclass, methods, klassMethods);
+        klass.slot = stmt.slot;
+        klass.superSlot = stmt.superSlot;
+        return klass;
+    }
+
+    private List<Stmt.Function> functions(List<Stmt.Function> functions) {
+        List<Stmt.Function> result = new ArrayList<>(functions.size());
+        boolean changed = false;
+        for (Stmt.Function function : functions) {
+            Stmt.Function optimized = (Stmt.Function) visitFunctionStmt(function);
+            changed |= optimized != function;
+            result.add(optimized);
+        }
+        return changed ? result : functions;
+    }
+
+    @Override
+    public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Expression(expression);
+    }
+
+    @Override
+    public Stmt visitFunctionStmt(Stmt.Function stmt) {
+        List<Stmt> body = statements(stmt.body);
+        if (body == stmt.body) return stmt;
+        Stmt.Function function = new Stmt.Function(stmt.name, stmt.params, body, stmt.isGetter);
+        function.slots = stmt.slots;
+        function.slot = stmt.slot;
+        function.upvalues = stmt.upvalues;
+        return function;
+    }
+
+    // 条件为常量时只留下会执行的分支, 分支自己是 Block 时仍然有自己的作用域
+    @Override
+    public Stmt visitIfStmt(Stmt.If stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (isConstant(condition)) {
+            if (Interpreter.isTruthy(value(condition))) return branch(stmt.thenBranch);
+            if (stmt.elseBranch == null) return null;
+            return branch(stmt.elseBranch);
+        }
+        Stmt thenBranch = branch(stmt.thenBranch);
+        Stmt elseBranch = branch(stmt.elseBranch);
+        if (condition == stmt.condition && thenBranch == stmt.thenBranch
+                && elseBranch == stmt.elseBranch) return stmt;
+        return new Stmt.If(condition, thenBranch, elseBranch);
+    }
+
+    @Override
+    public Stmt visitPrintStmt(Stmt.Print stmt) {
+        Expr expression = optimize(stmt.expression);
+        if (expression == stmt.expression) return stmt;
+        return new Stmt.Print(expression);
+    }
+
+    @Override
+    public Stmt visitReturnStmt(Stmt.Return stmt) {
+        Expr value = optimize(stmt.value);
+        if (value == stmt.value) return stmt;
+        Stmt.Return result = new Stmt.Return(stmt.keyword, value);
+        result.tail = stmt.tail && value instanceof Expr.Call;
+        return result;
+    }
+
+    @Override
+    public Stmt visitVarStmt(Stmt.Var stmt) {
+        Expr initializer = optimize(stmt.initializer);
+        if (initializer == stmt.initializer) return stmt;
+        Stmt.Var declaration = new Stmt.Var(stmt.name, initializer);
+        declaration.slot = stmt.slot;
+        return declaration;
+    }
+
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+        Expr condition = optimize(stmt.condition);
+        if (isConstant(condition) && !Interpreter.isTruthy(value(condition))) return null;
+        Stmt body = branch(stmt.body);
+        if (condition == stmt.condition && body == stmt.body) return stmt;
+        return new Stmt.While(condition, body);
+    }
+
+    // 条件为假的 for 只剩下 initializer, 仍然放在自己的作用域里执行
+    @Override
+    public Stmt visitForStmt(Stmt.For stmt) {
+        Stmt initializer = stmt.initializer == null ? null : stmt.initializer.accept(this);
+        Expr condition = optimize(stmt.condition);
+        Expr increment = optimize(stmt.increment);
+        Stmt body = branch(stmt.body);
+        if (isConstant(condition) && !Interpreter.isTruthy(value(condition))) {
+            body = empty();
+            increment = null;
+        }
+        if (initializer == stmt.initializer && condition == stmt.condition
+                && increment == stmt.increment && body == stmt.body) return stmt;
+        Stmt.For loop = new Stmt.For(initializer, condition, increment, body);
+        loop.slots = stmt.slots;
+        loop.base = stmt.base;
+        return loop;
+    }
+
+    @Override
+    public Stmt visitBreakStmt(Stmt.Break stmt) {
+        return stmt;
+    }
+}
@@ -1,17 +1,17 @@
 package com.gmail.coldrain608.lox;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import static com.gmail.coldrain608.lox.TokenType.*;
 
 class Parser {
     private static class ParseError extends RuntimeException {}
-    private final List<Token> tokens;
+    // 只有放进语法树或者用来报错的 token 才会创建 Token 对象
+    private final TokenBuffer tokens;
     private int current = 0;
 
-    Parser(List<Token> tokens) {
+    Parser(TokenBuffer tokens) {
         this.tokens = tokens;
     }
 
@@ -24,6 +24,19 @@ class Parser {
         return statements;
     }
 
+    // 流式模式每次只解析一条顶层声明, 调用前先用 isDone 判断是否已经结束
+    // 语法错误仍然由 declaration 报告并同步, 这时返回 null
+    Stmt next() {
+        Stmt statement = declaration();
+        // 解析完的 token 不会再用到
+        tokens.discard(current);
+        return statement;
+    }
+
+    boolean isDone() {
+        return isAtEnd();
+    }
+
     private Expr expression() {
         return comma();
     }
@@ -32,7 +45,7 @@ class Parser {
         Expr expr = ternary();
 
         if (match(EQUAL)) {
-            Token equals = previous();
+            int equals = current - 1;
             Expr value = assignment();
 
             if (expr instanceof Expr.Variable) {
@@ -43,7 +56,7 @@ class Parser {
                 return new Expr.Set(get.object, get.name, value);
             }
 
-            error(equals, "Invalid assignment target.");
+            error(tokens.token(equals), "Invalid assignment target.");
         }
 
         return expr;
@@ -64,7 +77,8 @@ class Parser {
     }
 
     private Stmt classDeclaration() {
-        Token name = consume(IDENTIFIER, "Expect class name.");
+        consume(IDENTIFIER, "Expect class name.");
+        Token name = previous();
         Expr.Variable superclass = null;
         if (match(LESS)) {
             consume(IDENTIFIER, "Expect superclass name.");
@@ -76,7 +90,7 @@ class Parser {
         List<Stmt.Function> klassMethods = new ArrayList<>();
         while (!check(RIGHT_BRACE) && !isAtEnd()) {
             // meta class method
-            if (peek().type == CLASS) {
+            if (check(CLASS)) {
                 consume(CLASS, "Expect class");
                 klassMethods.add(function("method"));
             } else {
@@ -129,19 +143,7 @@ class Parser {
         }
         consume(RIGHT_PAREN, "Expect ')' after for clauses.");
         Stmt body = statement();
-        // desugar
-        if (increment != null) {
-            body = new Stmt.Block(
-                    Arrays.asList(
-                            body,
-                            new Stmt.Expression(increment)));
-        }
-        if (condition == null) condition = new Expr.Literal(true);
-        body = new Stmt.While(condition, body);
-        if (initializer != null) {
-            body = new Stmt.Block(Arrays.asList(initializer, body));
-        }
-        return body;
+        return new Stmt.For(initializer, condition, increment, body);
     }
 
     private Stmt ifStatement() {
@@ -165,9 +167,10 @@ class Parser {
     }
 
     private Stmt.Function function(String kind) {
-        Token name = consume(IDENTIFIER, "Expect " + kind + " name.");
+        consume(IDENTIFIER, "Expect " + kind + " name.");
+        Token name = previous();
         // 适配 getter
-        if (kind.equals("method") && peek().type != LEFT_PAREN) {
+        if (kind.equals("method") && !check(LEFT_PAREN)) {
             consume(LEFT_BRACE, "Expect '{' before getter " + kind + " body.");
             List<Stmt> body = block();
             return new Stmt.Function(name, new ArrayList<>(), body, true);
@@ -180,8 +183,8 @@ class Parser {
                     error(peek(), "Can't have more than 255 parameters.");
                 }
 
-                parameters.add(
-                        consume(IDENTIFIER, "Expect parameter name."));
+                consume(IDENTIFIER, "Expect parameter name.");
+                parameters.add(previous());
             } while (match(COMMA));
         }
         consume(RIGHT_PAREN, "Expect ')' after parameters.");
@@ -219,7 +222,8 @@ class Parser {
     }
 
     private Stmt varDeclaration() {
-        Token name = consume(IDENTIFIER, "Expect variable name.");
+        consume(IDENTIFIER, "Expect variable name.");
+        Token name = previous();
 
         Expr initializer = null;
         if (match(EQUAL)) {
@@ -370,8 +374,8 @@ class Parser {
             } while (match(COMMA));
         }
 
-        Token paren = consume(RIGHT_PAREN,
-                "Expect ')' after arguments.");
+        consume(RIGHT_PAREN, "Expect ')' after arguments.");
+        Token paren = previous();
 
         return new Expr.Call(callee, paren, arguments);
     }
@@ -383,8 +387,8 @@ class Parser {
             if (match(LEFT_PAREN)) {
                 expr = finishCall(expr);
             } else if (match(DOT)) {
-                Token name = consume(IDENTIFIER,
-                    "Expect property name after '.'.");
+                consume(IDENTIFIER, "Expect property name after '.'.");
+                Token name = previous();
                 expr = new Expr.Get(expr, name);
             } else {
                 break;
@@ -400,14 +404,14 @@ class Parser {
         if (match(NIL)) return new Expr.Literal(null);
 
         if (match(NUMBER, STRING)) {
-            return new Expr.Literal(previous().literal);
+            return new Expr.Literal(tokens.literal(current - 1));
         }
 
         if (match(SUPER)) {
             Token keyword = previous();
             consume(DOT, "Expect '.' after 'super'.");
-            Token method = consume(IDENTIFIER,
-                    "Expect superclass method name.");
+            consume(IDENTIFIER, "Expect superclass method name.");
+            Token method = previous();
             return new Expr.Super(keyword, method);
         }
 
@@ -425,8 +429,11 @@ class Parser {
         throw error(peek(), "Expect expression.");
     }
 
-    private Token consume(TokenType type, String message) {
-        if (check(type)) return advance();
+    private void consume(TokenType type, String message) {
+        if (check(type)) {
+            advance();
+            return;
+        }
 
         throw error(peek(), message);
     }
@@ -440,9 +447,9 @@ class Parser {
         advance();
 
         while (!isAtEnd()) {
-            if (previous().type == SEMICOLON) return;
+            if (tokens.type(current - 1) == SEMICOLON) return;
 
-            switch (peek().type) {
+            switch (tokens.type(current)) {
                 case CLASS:
                 case FUN:
                 case VAR:
@@ -471,23 +478,22 @@ class Parser {
 
     private boolean check(TokenType type) {
         if (isAtEnd()) return false;
-        return peek().type == type;
+        return tokens.type(current) == type;
     }
 
-    private Token advance() {
+    private void advance() {
         if (!isAtEnd()) current++;
-        return previous();
     }
 
     private boolean isAtEnd() {
-        return peek().type == EOF;
+        return tokens.type(current) == EOF;
     }
 
     private Token peek() {
-        return tokens.get(current);
+        return tokens.token(current);
     }
 
     private Token previous() {
-        return tokens.get(current - 1);
+        return tokens.token(current - 1);
     }
 }
\ No newline at end of file
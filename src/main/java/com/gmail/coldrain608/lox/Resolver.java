@@ -1,5 +1,6 @@
 package com.gmail.coldrain608.lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -7,14 +8,17 @@ import java.util.Stack;
 import java.util.stream.Collectors;
 
 public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    private final Interpreter interpreter;
-    private final Stack<Map<String, VariableState>> scopes = new Stack<>();
+    // Block 和 for 的 slots 为 NO_FRAME 时运行时不创建 Environment, 变量放在外层的帧里
+    // 变量被闭包捕获时通过 upvalue 访问, 不影响帧的布局, 所以只看作用域是不是最外层, 不需要做逃逸分析
+    static final int NO_FRAME = -1;
+    // Expr 里 depth 的取值: 全局变量按名字查找, 局部变量是当前帧的 slot, upvalue 是闭包的第 slot 个 upvalue
+    static final int GLOBAL = -1;
+    static final int LOCAL = 0;
+    static final int UPVALUE = 1;
+
+    private final Stack<Scope> scopes = new Stack<>();
     private FunctionType currentFunction = FunctionType.NONE;
 
-    Resolver(Interpreter interpreter) {
-        this.interpreter = interpreter;
-    }
-
     private static class VariableState {
         VariableStage stage;
         Token declare;
@@ -42,7 +46,30 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         SUBCLASS
     }
 
+    // 一个词法作用域. 函数的作用域和最外层的作用域在运行时有自己的帧,
+    // Block 和 for 的变量接着外层已经声明的变量往后放, 被闭包捕获时通过 upvalue 访问
+    private static class Scope {
+        final Map<Symbol, VariableState> variables = new HashMap<>();
+        final Scope enclosing;
+        // 变量所在的帧, 有自己帧的作用域指向自己
+        final Scope frame;
+        // 作用域的第一个变量在帧里的 slot
+        final int base;
+        // 以下只对有自己帧的作用域有意义: 帧的大小, 以及函数捕获的外层变量
+        int size;
+        final List<Integer> upvalues = new ArrayList<>();
+
+        Scope(Scope enclosing, Scope frame, int base) {
+            this.enclosing = enclosing;
+            this.frame = frame == null ? this : frame;
+            this.base = base;
+            this.size = base;
+        }
+    }
+
     private ClassType currentClass = ClassType.NONE;
+    // 当前函数里嵌套的循环层数, break 只能出现在循环里
+    private int loopDepth = 0;
 
     public void resolve(List<Stmt> statements) {
         for (Stmt statement : statements) {
@@ -58,28 +85,45 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         expr.accept(this);
     }
 
+    // Block 和 for 的作用域, 最外层的有自己的帧, 其余的合并到外层的帧里
     private void beginScope() {
-        scopes.push(new HashMap<>());
+        if (scopes.isEmpty()) {
+            scopes.push(new Scope(null, null, 0));
+            return;
+        }
+        Scope enclosing = scopes.peek();
+        scopes.push(new Scope(enclosing, enclosing.frame, enclosing.base + enclosing.variables.size()));
     }
 
-    private void endScope() {
-        Map<String, VariableState> pop = scopes.pop();
+    // 函数的作用域总有自己的帧, base 为 1 时 slot 0 空着
+    private void beginFunctionScope(int base) {
+        scopes.push(new Scope(scopes.isEmpty() ? null : scopes.peek(), null, base));
+    }
+
+    private Scope endScope() {
+        Scope pop = scopes.pop();
 //        pop.forEach((var, state) -> {
 //            if (state.stage != VariableStage.USED) {
 //                Lox.error(state.declare, "variable " + var + " is not used.");
 //            }
 //        });
+        return pop;
+    }
+
+    // 作用域里多了一个变量, 帧的大小跟着增长
+    private static void declared(Scope scope) {
+        scope.frame.size = Math.max(scope.frame.size, scope.base + scope.variables.size());
     }
 
     private void declare(Token name) {
         if (scopes.isEmpty()) return;
 
-        VariableState prevState = scopes.peek().get(name.lexeme);
+        VariableState prevState = scopes.peek().variables.get(name.symbol);
 
         assert prevState == null : "variable has been declared before.";
 
-        Map<String, VariableState> scope = scopes.peek();
-        if (scope.containsKey(name.lexeme)) {
+        Map<Symbol, VariableState> scope = scopes.peek().variables;
+        if (scope.containsKey(name.symbol)) {
             Lox.error(name,
                     "Already variable with this name in this scope.");
         }
@@ -87,12 +131,13 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         variableState.stage = VariableStage.DECLARED;
         variableState.declare = name;
         variableState.idx = scope.size();
-        scope.put(name.lexeme, variableState);
+        scope.put(name.symbol, variableState);
+        declared(scopes.peek());
     }
 
     private void define(Token name) {
         if (scopes.isEmpty()) return;
-        VariableState prevState = scopes.peek().get(name.lexeme);
+        VariableState prevState = scopes.peek().variables.get(name.symbol);
 
         assert prevState != null
                 && prevState.stage == VariableStage.DECLARED : "variable define before declared.";
@@ -103,13 +148,13 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         variableState.define = name;
         variableState.idx = prevState.idx;
 
-        scopes.peek().put(name.lexeme, variableState);
+        scopes.peek().variables.put(name.symbol, variableState);
     }
 
     private void use(Token name) {
         if (scopes.isEmpty()) return;
-        List<VariableState> states = scopes.stream().filter(map -> map.containsKey(name.lexeme))
-                .map((map) -> map.get(name.lexeme))
+        List<VariableState> states = scopes.stream().filter(scope -> scope.variables.containsKey(name.symbol))
+                .map((scope) -> scope.variables.get(name.symbol))
                 .collect(Collectors.toList());
         VariableState prevState = states.get(states.size() - 1);
 
@@ -123,37 +168,103 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         variableState.use = name;
         variableState.idx = prevState.idx;
 
-        scopes.peek().put(name.lexeme, variableState);
+        scopes.peek().variables.put(name.symbol, variableState);
+    }
+
+    // 在当前作用域声明的变量在帧里的 slot, 全局变量为 -1
+    private int slot(Token name) {
+        if (scopes.isEmpty()) return -1;
+        Scope scope = scopes.peek();
+        return scope.base + scope.variables.get(name.symbol).idx;
     }
 
-    private void resolveLocal(Expr expr, Token name) {
+    // 把 (depth, slot) 直接回填到 AST 节点上, 其他函数里声明的变量由闭包捕获, 这时 slot 是 upvalue 的下标
+    // 找不到的是全局变量, slot 是名字的 Symbol.id, 运行时到全局变量表里按下标取值
+    private void resolveLocal(Expr expr, Symbol name) {
         for (int i = scopes.size() - 1; i >= 0; i--) {
-            if (scopes.get(i).containsKey(name.lexeme)) {
-                interpreter.resolve(expr, scopes.size() - 1 - i, scopes.get(i).get(name.lexeme).idx);
+            Scope scope = scopes.get(i);
+            VariableState state = scope.variables.get(name);
+            if (state != null) {
+                int slot = scope.base + state.idx;
+                Scope frame = scopes.peek().frame;
+                if (scope.frame == frame) {
+                    resolveLocal(expr, LOCAL, slot);
+                } else {
+                    resolveLocal(expr, UPVALUE, resolveUpvalue(frame, scope.frame, slot));
+                }
                 return;
             }
         }
+        resolveLocal(expr, GLOBAL, name.id);
+    }
+
+    // 和 Compiler.resolveUpvalue 一样, 从声明变量的函数到使用它的函数之间的每一层都要捕获
+    // 直接捕获外层帧的变量记为它的 slot, 捕获外层函数的 upvalue 记为 ~index
+    private static int resolveUpvalue(Scope function, Scope frame, int slot) {
+        Scope enclosing = function.enclosing.frame;
+        int capture = enclosing == frame ? slot : ~resolveUpvalue(enclosing, frame, slot);
+        int index = function.upvalues.indexOf(capture);
+        if (index < 0) {
+            function.upvalues.add(capture);
+            index = function.upvalues.size() - 1;
+        }
+        return index;
+    }
+
+    private static void resolveLocal(Expr expr, int depth, int slot) {
+        if (expr instanceof Expr.Variable) {
+            ((Expr.Variable) expr).depth = depth;
+            ((Expr.Variable) expr).slot = slot;
+        } else if (expr instanceof Expr.Assign) {
+            ((Expr.Assign) expr).depth = depth;
+            ((Expr.Assign) expr).slot = slot;
+        } else if (expr instanceof Expr.This) {
+            ((Expr.This) expr).depth = depth;
+            ((Expr.This) expr).slot = slot;
+        } else if (expr instanceof Expr.Super) {
+            ((Expr.Super) expr).depth = depth;
+            ((Expr.Super) expr).slot = slot;
+        }
     }
 
     private void resolveFunction(
             Stmt.Function function, FunctionType type) {
         FunctionType enclosingFunction = currentFunction;
+        int enclosingLoopDepth = loopDepth;
         currentFunction = type;
-        beginScope();
+        loopDepth = 0;
+        // slot 0 放方法的 this, 普通函数空着, 参数总是从 slot 1 开始
+        boolean method = type == FunctionType.METHOD || type == FunctionType.INITIALIZER;
+        beginFunctionScope(method ? 0 : 1);
+        if (method) {
+            VariableState thisState = new VariableState();
+            thisState.stage = VariableStage.USED;
+            thisState.declare = function.name;
+            thisState.define = function.name;
+            thisState.use = function.name;
+            thisState.idx = 0;
+            scopes.peek().variables.put(Symbol.THIS, thisState);
+            declared(scopes.peek());
+        }
         for (Token param : function.params) {
             declare(param);
             define(param);
         }
         resolve(function.body);
-        endScope();
+        Scope scope = endScope();
+        function.slots = scope.size;
+        function.upvalues = scope.upvalues.stream().mapToInt(Integer::intValue).toArray();
         currentFunction = enclosingFunction;
+        loopDepth = enclosingLoopDepth;
     }
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
         beginScope();
         resolve(stmt.statements);
-        endScope();
+        Scope scope = endScope();
+        stmt.slots = scope.frame == scope ? scope.size : NO_FRAME;
+        stmt.base = scope.base;
         return null;
     }
 
@@ -163,8 +274,9 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
         currentClass = ClassType.CLASS;
         declare(stmt.name);
         define(stmt.name);
+        stmt.slot = slot(stmt.name);
         if (stmt.superclass != null &&
-                stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
+                stmt.name.symbol == stmt.superclass.name.symbol) {
             Lox.error(stmt.superclass.name,
                     "A class can't inherit from itself.");
         }
@@ -179,20 +291,14 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             variableState.define = stmt.superclass.name;
             variableState.use = stmt.superclass.name;
             variableState.stage = VariableStage.USED;
-            variableState.idx = scopes.size();
-            scopes.peek().put("super", variableState);
+            variableState.idx = 0;
+            scopes.peek().variables.put(Symbol.SUPER, variableState);
+            declared(scopes.peek());
+            stmt.superSlot = scopes.peek().base;
         }
-        beginScope();
-        VariableState thisState = new VariableState();
-        thisState.stage = VariableStage.USED;
-        thisState.declare = stmt.name;
-        thisState.define = stmt.name;
-        thisState.use = stmt.name;
-        thisState.idx = scopes.size();
-        scopes.peek().put("this", thisState);
         for (Stmt.Function method : stmt.methods) {
             FunctionType declaration = FunctionType.METHOD;
-            if (method.name.lexeme.equals("init")) {
+            if (method.name.symbol == Symbol.INIT) {
                 declaration = FunctionType.INITIALIZER;
             }
             resolveFunction(method, declaration);
@@ -201,7 +307,6 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             FunctionType declaration = FunctionType.METHOD;
             resolveFunction(method, declaration);
         }
-        endScope();
         if (stmt.superclass != null) endScope();
         currentClass = enclosingClass;
         return null;
@@ -214,19 +319,20 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             resolve(stmt.initializer);
         }
         define(stmt.name);
+        stmt.slot = slot(stmt.name);
         return null;
     }
 
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
         if (!scopes.isEmpty() &&
-                (scopes.peek().get(expr.name.lexeme) != null
-                && scopes.peek().get(expr.name.lexeme).stage == VariableStage.DECLARED)) {
+                (scopes.peek().variables.get(expr.name.symbol) != null
+                && scopes.peek().variables.get(expr.name.symbol).stage == VariableStage.DECLARED)) {
             Lox.error(expr.name,
                     "Can't read local variable in its own initializer.");
         }
 
-        resolveLocal(expr, expr.name);
+        resolveLocal(expr, expr.name.symbol);
 
 //        use(expr.name);
         return null;
@@ -236,6 +342,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     public Void visitFunctionStmt(Stmt.Function stmt) {
         declare(stmt.name);
         define(stmt.name);
+        stmt.slot = slot(stmt.name);
 
         resolveFunction(stmt, FunctionType.FUNCTION);
         return null;
@@ -272,6 +379,8 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
                         "Can't return a value from an initializer.");
             }
             resolve(stmt.value);
+            // return f(...) 的调用是函数做的最后一件事, 由 Interpreter 复用当前的 Java 栈帧执行
+            stmt.tail = stmt.value instanceof Expr.Call && currentFunction != FunctionType.NONE;
         }
 
         return null;
@@ -280,18 +389,40 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
         resolve(stmt.condition);
+        loopDepth++;
+        resolve(stmt.body);
+        loopDepth--;
+        return null;
+    }
+
+    // 循环变量在循环自己的作用域里, 和原来展开成 Block + While 时一样整个循环共用一个
+    @Override
+    public Void visitForStmt(Stmt.For stmt) {
+        beginScope();
+        if (stmt.initializer != null) resolve(stmt.initializer);
+        if (stmt.condition != null) resolve(stmt.condition);
+        loopDepth++;
         resolve(stmt.body);
+        loopDepth--;
+        if (stmt.increment != null) resolve(stmt.increment);
+        Scope scope = endScope();
+        stmt.slots = scope.frame == scope ? scope.size : NO_FRAME;
+        stmt.base = scope.base;
         return null;
     }
 
     @Override
     public Void visitBreakStmt(Stmt.Break stmt) {
+        if (loopDepth == 0) {
+            Lox.error(stmt.token, "Can't break outside of a loop.");
+        }
         return null;
     }
 
     @Override
     public Void visitAssignExpr(Expr.Assign expr) {
         resolve(expr.value);
+        resolveLocal(expr, expr.name.symbol);
         return null;
     }
 
@@ -312,7 +443,8 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     @Override
     public Void visitTernaryExpr(Expr.Ternary expr) {
         resolve(expr.cond);
-        // 不 resolve then 和 else
+        resolve(expr.then);
+        resolve(expr.elseThen);
         return null;
     }
 
@@ -367,7 +499,12 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
             Lox.error(expr.keyword,
                     "Can't use 'super' in a class with no superclass.");
         }
-        resolveLocal(expr, expr.keyword);
+        resolveLocal(expr, Symbol.SUPER);
+        // super.method 还要用到 this, 按 this 表达式解析后记在同一个节点上
+        Expr.This self = new Expr.This(expr.keyword);
+        resolveLocal(self, Symbol.THIS);
+        expr.thisDepth = self.depth;
+        expr.thisSlot = self.slot;
         return null;
     }
 
@@ -378,7 +515,7 @@ public class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
                     "Can't use 'this' outside of a class.");
             return null;
         }
-        resolveLocal(expr, expr.keyword);
+        resolveLocal(expr, Symbol.THIS);
         return null;
     }
 
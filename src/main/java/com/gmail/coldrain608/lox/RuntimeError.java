@@ -1,10 +1,49 @@
 package com.gmail.coldrain608.lox;
 
+import java.util.ArrayList;
+import java.util.List;
+
 class RuntimeError extends RuntimeException {
     final Token token;
+    // 栈溢出时附带的 Lox 调用栈, 从最里层开始每层一行, 其它错误为 null
+    List<String> backtrace;
+    // 树遍历解释器从里往外展开时, 当前这一层出错的调用点的行号
+    // 要等离开所在的函数时才知道函数名
+    private int line;
 
     RuntimeError(Token token, String message) {
         super(message);
         this.token = token;
     }
+
+    static RuntimeError stackOverflow(Token call) {
+        RuntimeError error = new RuntimeError(call, "Stack overflow.");
+        error.backtrace = new ArrayList<>();
+        error.line = call.line;
+        return error;
+    }
+
+    // 异常穿过调用点, 记下这一层里最靠里的调用点
+    RuntimeError at(Token call) {
+        if (backtrace != null && line == 0) line = call.line;
+        return this;
+    }
+
+    // 异常离开了 function, 之前记下的调用点就在它里面
+    RuntimeError unwind(String function) {
+        if (backtrace != null && line > 0) {
+            backtrace.add(frame(line, function));
+            line = 0;
+        }
+        return this;
+    }
+
+    // 展开到了顶层代码
+    RuntimeError unwindScript() {
+        return unwind(null);
+    }
+
+    static String frame(int line, String function) {
+        return "[line " + line + "] in " + (function == null ? "script" : function + "()");
+    }
 }
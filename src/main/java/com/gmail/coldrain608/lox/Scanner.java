@@ -1,58 +1,51 @@
 package com.gmail.coldrain608.lox;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
 import static com.gmail.coldrain608.lox.TokenType.*;
 
 public class Scanner {
-    private final String source;
-    private final List<Token> tokens = new ArrayList<>();
+    // 可以是 String, 也可以是映射到内存的 MappedSource
+    private final CharSequence source;
+    private final TokenBuffer tokens;
     // 添加下面三行代码
     private int start = 0;
     private int current = 0;
     private int line = 1;
 
-    private static final Map<String, TokenType> keywords;
-
-    static {
-        keywords = new HashMap<>();
-        keywords.put("and",    AND);
-        keywords.put("class",  CLASS);
-        keywords.put("else",   ELSE);
-        keywords.put("false",  FALSE);
-        keywords.put("for",    FOR);
-        keywords.put("fun",    FUN);
-        keywords.put("if",     IF);
-        keywords.put("nil",    NIL);
-        keywords.put("or",     OR);
-        keywords.put("print",  PRINT);
-        keywords.put("return", RETURN);
-        keywords.put("super",  SUPER);
-        keywords.put("this",   THIS);
-        keywords.put("true",   TRUE);
-        keywords.put("var",    VAR);
-        keywords.put("while",  WHILE);
-        keywords.put("break",  BREAK);
-    }
-
-    public Scanner(String source) {
+    public Scanner(CharSequence source) {
         this.source = source;
+        this.tokens = new TokenBuffer(source);
     }
 
-    List<Token> scanTokens() {
+    TokenBuffer scanTokens() {
         while (!isAtEnd()) {
             // We are at the beginning of the next lexeme.
             start = current;
             scanToken();
         }
 
-        tokens.add(new Token(EOF, "", null, line));
+        tokens.add(EOF, source.length(), 0, line);
+        return tokens;
+    }
+
+    // 流式扫描: 返回的 TokenBuffer 在 Parser 读到还没扫描的位置时才调用 scanNext
+    TokenBuffer streamTokens() {
+        tokens.stream(this);
         return tokens;
     }
 
+    // 扫描到新增一个 token 为止, 到结尾时添加 EOF 并返回 false
+    boolean scanNext() {
+        int count = tokens.size();
+        while (!isAtEnd()) {
+            start = current;
+            scanToken();
+            if (tokens.size() > count) return true;
+        }
+
+        tokens.add(EOF, source.length(), 0, line);
+        return false;
+    }
+
     private void scanToken() {
         char c = advance();
         switch (c) {
@@ -124,8 +117,7 @@ public class Scanner {
             while (isDigit(peek())) advance();
         }
 
-        addToken(NUMBER,
-                Double.parseDouble(source.substring(start, current)));
+        addToken(NUMBER);
     }
 
     private void string() {
@@ -142,18 +134,58 @@ public class Scanner {
         // The closing
         advance();
 
-        // Trim the surrounding quotes.
-        String value = source.substring(start + 1, current - 1);
-        addToken(STRING, value);
+        // 字面量由 TokenBuffer 在需要时去掉引号取出
+        addToken(STRING);
     }
 
     private void identifier() {
         while (isAlphaNumeric(peek())) advance();
 
-        String text = source.substring(start, current);
-        TokenType type = keywords.get(text);
-        if (type == null) type = IDENTIFIER;
-        addToken(type);
+        addToken(identifierType());
+    }
+
+    // 按首字母分支判断关键字, 不需要为每个标识符截取字符串
+    private TokenType identifierType() {
+        switch (source.charAt(start)) {
+            case 'a': return checkKeyword("and", AND);
+            case 'b': return checkKeyword("break", BREAK);
+            case 'c': return checkKeyword("class", CLASS);
+            case 'e': return checkKeyword("else", ELSE);
+            case 'f':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'a': return checkKeyword("false", FALSE);
+                        case 'o': return checkKeyword("for", FOR);
+                        case 'u': return checkKeyword("fun", FUN);
+                    }
+                }
+                break;
+            case 'i': return checkKeyword("if", IF);
+            case 'n': return checkKeyword("nil", NIL);
+            case 'o': return checkKeyword("or", OR);
+            case 'p': return checkKeyword("print", PRINT);
+            case 'r': return checkKeyword("return", RETURN);
+            case 's': return checkKeyword("super", SUPER);
+            case 't':
+                if (current - start > 1) {
+                    switch (source.charAt(start + 1)) {
+                        case 'h': return checkKeyword("this", THIS);
+                        case 'r': return checkKeyword("true", TRUE);
+                    }
+                }
+                break;
+            case 'v': return checkKeyword("var", VAR);
+            case 'w': return checkKeyword("while", WHILE);
+        }
+        return IDENTIFIER;
+    }
+
+    private TokenType checkKeyword(String keyword, TokenType type) {
+        if (current - start != keyword.length()) return IDENTIFIER;
+        for (int i = 0; i < keyword.length(); i++) {
+            if (source.charAt(start + i) != keyword.charAt(i)) return IDENTIFIER;
+        }
+        return type;
     }
 
     private boolean isAtEnd() {
@@ -166,12 +198,7 @@ public class Scanner {
     }
 
     private void addToken(TokenType type) {
-        addToken(type, null);
-    }
-
-    private void addToken(TokenType type, Object literal) {
-        String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        tokens.add(type, start, current - start, line);
     }
 
     private boolean match(char expected) {
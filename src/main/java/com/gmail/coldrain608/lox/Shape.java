@@ -0,0 +1,42 @@
+package com.gmail.coldrain608.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// 实例的字段布局, 按相同顺序添加字段的实例共享同一个 Shape
+// 字段值按 slot 存在实例的 Object[] 里, 添加字段时沿 transitions 走到下一个 Shape
+// Shape 树是全局共享的, 多个线程上的解释器可能同时添加字段, transitions 用 ConcurrentHashMap,
+// slots 创建之后不再修改
+final class Shape {
+    static final Shape EMPTY = new Shape(new HashMap<>());
+
+    private final Map<Symbol, Integer> slots;
+    private final Map<Symbol, Shape> transitions = new ConcurrentHashMap<>();
+
+    private Shape(Map<Symbol, Integer> slots) {
+        this.slots = slots;
+    }
+
+    int size() {
+        return slots.size();
+    }
+
+    // 没有这个字段时返回 -1
+    int slot(Symbol name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+
+    // 新字段的 slot 是原来的 size()
+    // 同一个字段只会创建一个后继 Shape, 否则按相同顺序添加字段的实例会得到不同的 Shape
+    Shape add(Symbol name) {
+        Shape next = transitions.get(name);
+        if (next != null) return next;
+        return transitions.computeIfAbsent(name, key -> {
+            Map<Symbol, Integer> nextSlots = new HashMap<>(slots);
+            nextSlots.put(key, slots.size());
+            return new Shape(nextSlots);
+        });
+    }
+}
@@ -13,6 +13,7 @@ public abstract class Stmt {
     public R visitReturnStmt(Return stmt);
     public R visitVarStmt(Var stmt);
     public R visitWhileStmt(While stmt);
+    public R visitForStmt(For stmt);
     public R visitBreakStmt(Break stmt);
   }
   public static class Block extends Stmt {
@@ -26,6 +27,8 @@ public abstract class Stmt {
     }
 
    public final List<Stmt> statements;
+   public int slots;
+   public int base;
   }
   public static class Class extends Stmt {
     Class(Token name, Expr.Variable superclass, List<Stmt.Function> methods, List<Stmt.Function> klassMethods) {
@@ -44,6 +47,8 @@ public abstract class Stmt {
    public final Expr.Variable superclass;
    public final List<Stmt.Function> methods;
    public final List<Stmt.Function> klassMethods;
+   public int slot = -1;
+   public int superSlot;
   }
   public static class Expression extends Stmt {
     Expression(Expr expression) {
@@ -74,6 +79,11 @@ public abstract class Stmt {
    public final List<Token> params;
    public final List<Stmt> body;
    public final boolean isGetter;
+   public int slots;
+   public int slot = -1;
+   public int[] upvalues;
+   public int calls;
+   public volatile JitCode compiled;
   }
   public static class If extends Stmt {
     If(Expr condition, Stmt thenBranch, Stmt elseBranch) {
@@ -116,6 +126,7 @@ public abstract class Stmt {
 
    public final Token keyword;
    public final Expr value;
+   public boolean tail;
   }
   public static class Var extends Stmt {
     Var(Token name, Expr initializer) {
@@ -130,6 +141,7 @@ public abstract class Stmt {
 
    public final Token name;
    public final Expr initializer;
+   public int slot = -1;
   }
   public static class While extends Stmt {
     While(Expr condition, Stmt body) {
@@ -145,6 +157,27 @@ public abstract class Stmt {
    public final Expr condition;
    public final Stmt body;
   }
+  public static class For extends Stmt {
+    For(Stmt initializer, Expr condition, Expr increment, Stmt body) {
+      this.initializer = initializer;
+      this.condition = condition;
+      this.increment = increment;
+      this.body = body;
+    }
+
+    @Override
+    public <R> R accept(Visitor<R> visitor) {
+      return visitor.visitForStmt(this);
+    }
+
+   public final Stmt initializer;
+   public final Expr condition;
+   public final Expr increment;
+   public final Stmt body;
+   public int slots;
+   public int base;
+   public int specialized;
+  }
   public static class Break extends Stmt {
     Break(Token token) {
       this.token = token;
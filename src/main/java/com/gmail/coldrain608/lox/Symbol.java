@@ -0,0 +1,43 @@
+package com.gmail.coldrain608.lox;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// 标识符的全局驻留表, 同名的标识符总是同一个 Symbol
+// 作用域, 字段, 方法表都以 Symbol 为键, 比较只需要判断引用相等, 哈希值也提前算好
+// 驻留表由所有线程上的解释器共享, id 同时是全局变量的 slot, 必须唯一且连续
+final class Symbol {
+    private static final Map<String, Symbol> table = new ConcurrentHashMap<>();
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    static final Symbol THIS = intern("this");
+    static final Symbol SUPER = intern("super");
+    static final Symbol INIT = intern("init");
+
+    final String name;
+    final int id;
+    private final int hash;
+
+    private Symbol(String name, int id) {
+        this.name = name;
+        this.id = id;
+        this.hash = name.hashCode();
+    }
+
+    static Symbol intern(String name) {
+        Symbol symbol = table.get(name);
+        if (symbol != null) return symbol;
+        return table.computeIfAbsent(name, key -> new Symbol(key, nextId.getAndIncrement()));
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
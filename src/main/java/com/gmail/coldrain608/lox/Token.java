@@ -5,12 +5,16 @@ public class Token {
     final String lexeme;
     final Object literal;
     final int line;
+    // 标识符, this 和 super 在创建 Token 时驻留, 其他 token 为 null
+    final Symbol symbol;
 
     Token(TokenType type, String lexeme, Object literal, int line) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.symbol = type == TokenType.IDENTIFIER || type == TokenType.THIS || type == TokenType.SUPER
+                ? Symbol.intern(lexeme) : null;
     }
 
     public String toString() {
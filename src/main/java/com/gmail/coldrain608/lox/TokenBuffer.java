@@ -0,0 +1,100 @@
+package com.gmail.coldrain608.lox;
+
+import java.util.Arrays;
+
+// Scanner 的输出, 按列存放: 每个 token 只占类型, 起始位置, 长度和行号四个 int
+// lexeme, 字面量和 Token 对象都由 Parser 在需要时从源码里取出来
+final class TokenBuffer {
+    private static final TokenType[] TYPES = TokenType.values();
+
+    private final CharSequence source;
+    private int[] types = new int[256];
+    private int[] starts = new int[256];
+    private int[] lengths = new int[256];
+    private int[] lines = new int[256];
+    private int count = 0;
+    // 流式模式下 token 按需扫描, 已经用完的 token 会被丢掉
+    // base 是数组第一个元素的下标, Parser 看到的下标始终从 0 开始连续增长
+    private Scanner scanner;
+    private int base = 0;
+
+    TokenBuffer(CharSequence source) {
+        this.source = source;
+    }
+
+    void stream(Scanner scanner) {
+        this.scanner = scanner;
+    }
+
+    void add(TokenType type, int start, int length, int line) {
+        if (count == types.length) {
+            int capacity = count * 2;
+            types = Arrays.copyOf(types, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+        }
+        types[count] = type.ordinal();
+        starts[count] = start;
+        lengths[count] = length;
+        lines[count] = line;
+        count++;
+    }
+
+    // 下标对应的 token 还没扫描时先让 Scanner 往后扫描, 扫描到 EOF 之后就不再需要 Scanner
+    private int at(int index) {
+        int i = index - base;
+        while (i >= count && scanner != null) {
+            if (!scanner.scanNext()) scanner = null;
+        }
+        return i;
+    }
+
+    // 丢掉 index 之前的 token, 只保留 Parser 的 previous() 还会用到的 index - 1
+    void discard(int index) {
+        int keep = index - 1 - base;
+        if (keep <= 0) return;
+        int rest = count - keep;
+        System.arraycopy(types, keep, types, 0, rest);
+        System.arraycopy(starts, keep, starts, 0, rest);
+        System.arraycopy(lengths, keep, lengths, 0, rest);
+        System.arraycopy(lines, keep, lines, 0, rest);
+        count = rest;
+        base += keep;
+    }
+
+    int size() {
+        return count;
+    }
+
+    TokenType type(int index) {
+        return TYPES[types[at(index)]];
+    }
+
+    int line(int index) {
+        return lines[at(index)];
+    }
+
+    String lexeme(int index) {
+        int i = at(index);
+        return source.subSequence(starts[i], starts[i] + lengths[i]).toString();
+    }
+
+    // 只有数字和字符串有字面量
+    Object literal(int index) {
+        switch (type(index)) {
+            case NUMBER:
+                return Double.parseDouble(lexeme(index));
+            case STRING:
+                // 去掉两边的引号
+                int i = at(index);
+                return source.subSequence(starts[i] + 1, starts[i] + lengths[i] - 1).toString();
+            default:
+                return null;
+        }
+    }
+
+    Token token(int index) {
+        return new Token(type(index), lexeme(index), literal(index), line(index));
+    }
+}
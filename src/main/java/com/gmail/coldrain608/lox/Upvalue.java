@@ -0,0 +1,35 @@
+package com.gmail.coldrain608.lox;
+
+// 闭包捕获的一个变量, 和 VM 的 Obj.Upvalue 一样分为打开和关闭两种状态
+// 变量所在的作用域还没结束时 frame 指向它的帧, 读写直接落在帧的 slot 上
+// 作用域结束时由 Environment.closeUpvalues 把值搬进 closed, 之后不再引用帧
+final class Upvalue {
+    Environment frame;
+    final int slot;
+    Object closed;
+    // 同一个帧里还打开着的 upvalue, 按 slot 从高到低排列
+    Upvalue next;
+
+    Upvalue(Environment frame, int slot) {
+        this.frame = frame;
+        this.slot = slot;
+    }
+
+    Object get() {
+        if (frame != null) return frame.getAt(slot);
+        return closed;
+    }
+
+    void set(Object value) {
+        if (frame != null) {
+            frame.assignAt(slot, value);
+        } else {
+            closed = value;
+        }
+    }
+
+    void close() {
+        closed = frame.getAt(slot);
+        frame = null;
+    }
+}
@@ -0,0 +1,1000 @@
+package com.gmail.coldrain608.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// 执行 Compiler 生成的字节码
+// Lox 函数调用只压入一个 CallFrame, 不会在 Java 栈上递归
+class VM {
+
+    // 帧在堆上, 调用深度只受这个上限限制, 和线程栈的大小无关
+    private static final int FRAMES_MAX = Interpreter.FRAMES_MAX;
+
+    private static class CallFrame {
+        Obj.Closure closure;
+        // 函数的字节码和常量池, 返回时直接取, 不用经过 closure 和 function
+        int[] code;
+        Object[] constants;
+        int ip;
+        // 这个帧的 slot 0 在栈上的位置
+        int base;
+    }
+
+    // 栈上的数字不装箱: stack 的这一格放 NUM, 值放在 numbers 的同一格
+    // 值离开栈 (存进全局变量, 字段, 关闭的 upvalue, 传给原生函数, 打印) 时才用 value 装箱,
+    // 从外面放进栈的值用 store 拆箱, 所以栈上永远不会出现 Double
+    // NUM 不是 null 也不是 Boolean, isTruthy 对它返回 true, 和对数字一样
+    private static final Object NUM = new Object();
+    private Object[] stack = new Object[256];
+    private double[] numbers = new double[256];
+    private int sp = 0;
+    private CallFrame[] frames = new CallFrame[64];
+    private int frameCount = 0;
+    // 全局变量在编译时就分配好下标, 运行时按下标访问
+    private static final Object UNDEFINED = new Object();
+    private final Map<Symbol, Integer> globalSlots = new HashMap<>();
+    private Symbol[] globalNames = new Symbol[64];
+    private Object[] globals = new Object[64];
+    // 还指向栈上变量的 upvalue, 按 slot 从高到低排列
+    private Obj.Upvalue openUpvalues;
+
+    VM() {
+        Arrays.fill(globals, UNDEFINED);
+        globals[globalSlot(Symbol.intern("clock"))] = new Obj.Native(0,
+                (args, offset) -> (double)System.currentTimeMillis() / 1000.0);
+    }
+
+    // 同名的全局变量总是同一个下标, REPL 里后面的输入也能看到前面定义的变量
+    int globalSlot(Symbol name) {
+        Integer slot = globalSlots.get(name);
+        if (slot != null) return slot;
+
+        slot = globalSlots.size();
+        if (slot == globals.length) {
+            globals = Arrays.copyOf(globals, slot * 2);
+            Arrays.fill(globals, slot, globals.length, UNDEFINED);
+            globalNames = Arrays.copyOf(globalNames, slot * 2);
+        }
+        globalNames[slot] = name;
+        globalSlots.put(name, slot);
+        return slot;
+    }
+
+    void interpret(Obj.Function script) {
+        Obj.Closure closure = new Obj.Closure(script);
+        try {
+            push(closure);
+            call(closure, 0);
+            run(0);
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+        } finally {
+            Arrays.fill(stack, 0, sp, null);
+            sp = 0;
+            frameCount = 0;
+            openUpvalues = null;
+        }
+    }
+
+    // 一直执行到帧的数量回到 baseFrame, 返回最后一个函数的返回值
+    // 栈和栈顶放在局部变量里, 调用其它方法前写回字段, 返回后再读出来
+    private Object run(int baseFrame) {
+        CallFrame frame = frames[frameCount - 1];
+        int[] code = frame.code;
+        Object[] constants = frame.constants;
+        int ip = frame.ip;
+        int base = frame.base;
+        Object[] stack = this.stack;
+        double[] numbers = this.numbers;
+        int sp = this.sp;
+
+        try {
+            for (;;) {
+                switch (code[ip++]) {
+                    case OpCode.CONSTANT:
+                        stack[sp++] = constants[code[ip++]];
+                        break;
+                    case OpCode.NUMBER:
+                        stack[sp] = NUM;
+                        numbers[sp] = number(code, ip);
+                        sp++;
+                        ip += 2;
+                        break;
+                    case OpCode.NIL: stack[sp++] = null; break;
+                    case OpCode.TRUE: stack[sp++] = true; break;
+                    case OpCode.FALSE: stack[sp++] = false; break;
+                    case OpCode.POP: stack[--sp] = null; break;
+                    case OpCode.GET_LOCAL: {
+                        int slot = base + code[ip++];
+                        stack[sp] = stack[slot];
+                        numbers[sp] = numbers[slot];
+                        sp++;
+                        break;
+                    }
+                    case OpCode.SET_LOCAL: {
+                        int slot = base + code[ip++];
+                        stack[slot] = stack[sp - 1];
+                        numbers[slot] = numbers[sp - 1];
+                        break;
+                    }
+                    case OpCode.GET_GLOBAL: {
+                        int slot = code[ip++];
+                        Object value = globals[slot];
+                        if (value == UNDEFINED) {
+                            throw error("Undefined variable '" + globalNames[slot] + "'.");
+                        }
+                        if (value instanceof Double) {
+                            stack[sp] = NUM;
+                            numbers[sp] = (double) value;
+                        } else {
+                            stack[sp] = value;
+                        }
+                        sp++;
+                        break;
+                    }
+                    case OpCode.DEFINE_GLOBAL:
+                        globals[code[ip++]] = value(--sp);
+                        stack[sp] = null;
+                        break;
+                    case OpCode.SET_GLOBAL: {
+                        int slot = code[ip++];
+                        if (globals[slot] == UNDEFINED) {
+                            throw error("Undefined variable '" + globalNames[slot] + "'.");
+                        }
+                        globals[slot] = value(sp - 1);
+                        // 赋值语句后面的 POP 一起做掉
+                        if (code[ip] == OpCode.POP) {
+                            stack[--sp] = null;
+                            ip++;
+                        }
+                        break;
+                    }
+                    case OpCode.GET_UPVALUE: {
+                        Obj.Upvalue upvalue = frame.closure.upvalues[code[ip++]];
+                        if (upvalue.slot >= 0) {
+                            stack[sp] = stack[upvalue.slot];
+                            numbers[sp] = numbers[upvalue.slot];
+                        } else {
+                            store(sp, upvalue.closed);
+                        }
+                        sp++;
+                        break;
+                    }
+                    case OpCode.SET_UPVALUE: {
+                        Obj.Upvalue upvalue = frame.closure.upvalues[code[ip++]];
+                        if (upvalue.slot >= 0) {
+                            stack[upvalue.slot] = stack[sp - 1];
+                            numbers[upvalue.slot] = numbers[sp - 1];
+                        } else {
+                            upvalue.closed = value(sp - 1);
+                        }
+                        break;
+                    }
+                    case OpCode.GET_PROPERTY: {
+                        Symbol name = (Symbol) constants[code[ip++]];
+                        Object object = stack[sp - 1];
+                        if (!(object instanceof Obj.Instance)) {
+                            throw error("Only instances have properties.");
+                        }
+                        Obj.Instance instance = (Obj.Instance) object;
+                        int slot = instance.shape.slot(name);
+                        Obj.Closure getter = null;
+                        if (slot >= 0) {
+                            Object value = instance.fields[slot];
+                            // 和解释器一样, 字段里存的 getter 取值时也会被调用
+                            if (value instanceof Obj.BoundMethod
+                                    && ((Obj.BoundMethod) value).method.function.isGetter) {
+                                stack[sp - 1] = ((Obj.BoundMethod) value).receiver;
+                                getter = ((Obj.BoundMethod) value).method;
+                            } else {
+                                store(sp - 1, value);
+                            }
+                        } else {
+                            Obj.Closure method = findMethod(instance, name);
+                            if (method == null) {
+                                throw error("Undefined property '" + name + "'.");
+                            }
+                            if (method.function.isGetter) {
+                                getter = method;
+                            } else {
+                                stack[sp - 1] = new Obj.BoundMethod(instance, method);
+                            }
+                        }
+                        if (getter != null) {
+                            // 接收者已经在栈顶, 正好是 getter 的 slot 0
+                            frame.ip = ip;
+                            this.sp = sp;
+                            call(getter, 0);
+                            stack = this.stack;
+                            numbers = this.numbers;
+                            frame = frames[frameCount - 1];
+                            code = frame.code;
+                            constants = frame.constants;
+                            ip = frame.ip;
+                            base = frame.base;
+                        }
+                        break;
+                    }
+                    case OpCode.SET_PROPERTY: {
+                        Symbol name = (Symbol) constants[code[ip++]];
+                        Object object = stack[sp - 2];
+                        if (!(object instanceof Obj.Instance)) {
+                            throw error("Only instances have fields.");
+                        }
+                        ((Obj.Instance) object).setField(name, value(sp - 1));
+                        // 赋值表达式的值就是右边的值, 连同 numbers 一起挪到对象的位置
+                        stack[sp - 2] = stack[sp - 1];
+                        numbers[sp - 2] = numbers[sp - 1];
+                        stack[--sp] = null;
+                        break;
+                    }
+                    case OpCode.GET_SUPER: {
+                        Symbol name = (Symbol) constants[code[ip++]];
+                        Obj.Class superclass = (Obj.Class) stack[--sp];
+                        stack[sp] = null;
+                        Obj.Closure method = superclass.methods.get(name);
+                        if (method == null) {
+                            throw error("Undefined property '" + name + "'.");
+                        }
+                        stack[sp - 1] = new Obj.BoundMethod(stack[sp - 1], method);
+                        break;
+                    }
+                    case OpCode.EQUAL:
+                        stack[sp - 2] = isEqual(sp - 2, sp - 1);
+                        stack[--sp] = null;
+                        break;
+                    case OpCode.NOT_EQUAL:
+                        stack[sp - 2] = !isEqual(sp - 2, sp - 1);
+                        stack[--sp] = null;
+                        break;
+                    // 和合成的比较指令一样, 后面紧跟 POP_JUMP_IF_FALSE 时直接跳转
+                    case OpCode.GREATER: {
+                        checkNumberOperands(stack[sp - 2], stack[sp - 1]);
+                        boolean result = numbers[sp - 2] > numbers[sp - 1];
+                        stack[--sp] = null;
+                        if (code[ip] == OpCode.POP_JUMP_IF_FALSE) {
+                            stack[--sp] = null;
+                            ip = result ? ip + 2 : code[ip + 1];
+                        } else {
+                            stack[sp - 1] = result;
+                        }
+                        break;
+                    }
+                    case OpCode.GREATER_EQUAL: {
+                        checkNumberOperands(stack[sp - 2], stack[sp - 1]);
+                        boolean result = numbers[sp - 2] >= numbers[sp - 1];
+                        stack[--sp] = null;
+                        if (code[ip] == OpCode.POP_JUMP_IF_FALSE) {
+                            stack[--sp] = null;
+                            ip = result ? ip + 2 : code[ip + 1];
+                        } else {
+                            stack[sp - 1] = result;
+                        }
+                        break;
+                    }
+                    case OpCode.LESS: {
+                        checkNumberOperands(stack[sp - 2], stack[sp - 1]);
+                        boolean result = numbers[sp - 2] < numbers[sp - 1];
+                        stack[--sp] = null;
+                        if (code[ip] == OpCode.POP_JUMP_IF_FALSE) {
+                            stack[--sp] = null;
+                            ip = result ? ip + 2 : code[ip + 1];
+                        } else {
+                            stack[sp - 1] = result;
+                        }
+                        break;
+                    }
+                    case OpCode.LESS_EQUAL: {
+                        checkNumberOperands(stack[sp - 2], stack[sp - 1]);
+                        boolean result = numbers[sp - 2] <= numbers[sp - 1];
+                        stack[--sp] = null;
+                        if (code[ip] == OpCode.POP_JUMP_IF_FALSE) {
+                            stack[--sp] = null;
+                            ip = result ? ip + 2 : code[ip + 1];
+                        } else {
+                            stack[sp - 1] = result;
+                        }
+                        break;
+                    }
+                    case OpCode.ADD: {
+                        if (stack[sp - 2] == NUM && stack[sp - 1] == NUM) {
+                            numbers[sp - 2] += numbers[sp - 1];
+                            stack[--sp] = null;
+                            break;
+                        }
+                        stack[sp - 2] = concatenate(value(sp - 2), value(sp - 1));
+                        stack[--sp] = null;
+                        break;
+                    }
+                    case OpCode.SUBTRACT:
+                        checkNumberOperands(stack[sp - 2], stack[sp - 1]);
+                        numbers[sp - 2] -= numbers[sp - 1];
+                        stack[--sp] = null;
+                        break;
+                    case OpCode.MULTIPLY:
+                        checkNumberOperands(stack[sp - 2], stack[sp - 1]);
+                        numbers[sp - 2] *= numbers[sp - 1];
+                        stack[--sp] = null;
+                        break;
+                    case OpCode.DIVIDE:
+                        checkNumberOperands(stack[sp - 2], stack[sp - 1]);
+                        if (numbers[sp - 1] == 0) {
+                            throw error("Divide by zero.");
+                        }
+                        numbers[sp - 2] /= numbers[sp - 1];
+                        stack[--sp] = null;
+                        break;
+                    case OpCode.NOT:
+                        stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+                        break;
+                    case OpCode.NEGATE:
+                        if (stack[sp - 1] != NUM) {
+                            throw error("Operand must be a number.");
+                        }
+                        numbers[sp - 1] = -numbers[sp - 1];
+                        break;
+                    case OpCode.PRINT:
+                        System.out.println(Interpreter.stringify(value(--sp)));
+                        stack[sp] = null;
+                        break;
+                    case OpCode.JUMP:
+                    case OpCode.LOOP:
+                        ip = code[ip];
+                        break;
+                    case OpCode.JUMP_IF_FALSE:
+                        if (Interpreter.isTruthy(stack[sp - 1])) {
+                            ip++;
+                        } else {
+                            ip = code[ip];
+                        }
+                        break;
+                    case OpCode.POP_JUMP_IF_FALSE:
+                        if (Interpreter.isTruthy(stack[--sp])) {
+                            ip++;
+                        } else {
+                            ip = code[ip];
+                        }
+                        stack[sp] = null;
+                        break;
+                    case OpCode.CALL: {
+                        int argCount = code[ip++];
+                        frame.ip = ip;
+                        this.sp = sp;
+                        callValue(stack[sp - argCount - 1], argCount);
+                        stack = this.stack;
+                        numbers = this.numbers;
+                        sp = this.sp;
+                        frame = frames[frameCount - 1];
+                        code = frame.code;
+                        constants = frame.constants;
+                        ip = frame.ip;
+                        base = frame.base;
+                        break;
+                    }
+                    case OpCode.INVOKE: {
+                        Symbol name = (Symbol) constants[code[ip]];
+                        int argCount = code[ip + 1];
+                        ip += 2;
+                        frame.ip = ip;
+                        this.sp = sp;
+                        invoke(name, argCount, false);
+                        stack = this.stack;
+                        numbers = this.numbers;
+                        sp = this.sp;
+                        frame = frames[frameCount - 1];
+                        code = frame.code;
+                        constants = frame.constants;
+                        ip = frame.ip;
+                        base = frame.base;
+                        break;
+                    }
+                    case OpCode.SUPER_INVOKE: {
+                        Symbol name = (Symbol) constants[code[ip]];
+                        int argCount = code[ip + 1];
+                        ip += 2;
+                        Obj.Class superclass = (Obj.Class) stack[--sp];
+                        stack[sp] = null;
+                        Obj.Closure method = superclass.methods.get(name);
+                        if (method == null) {
+                            throw error("Undefined property '" + name + "'.");
+                        }
+                        frame.ip = ip;
+                        this.sp = sp;
+                        call(method, argCount);
+                        stack = this.stack;
+                        numbers = this.numbers;
+                        frame = frames[frameCount - 1];
+                        code = frame.code;
+                        constants = frame.constants;
+                        ip = frame.ip;
+                        base = frame.base;
+                        break;
+                    }
+                    // 尾调用: 被调函数的帧直接顶替当前的帧, 递归再深 frameCount 也不增长
+                    case OpCode.TAIL_CALL: {
+                        int argCount = code[ip++];
+                        frame.ip = ip;
+                        this.sp = sp;
+                        tailCallValue(argCount);
+                        stack = this.stack;
+                        numbers = this.numbers;
+                        sp = this.sp;
+                        frame = frames[frameCount - 1];
+                        code = frame.code;
+                        constants = frame.constants;
+                        ip = frame.ip;
+                        base = frame.base;
+                        break;
+                    }
+                    case OpCode.TAIL_INVOKE: {
+                        Symbol name = (Symbol) constants[code[ip]];
+                        int argCount = code[ip + 1];
+                        ip += 2;
+                        frame.ip = ip;
+                        this.sp = sp;
+                        invoke(name, argCount, true);
+                        stack = this.stack;
+                        numbers = this.numbers;
+                        sp = this.sp;
+                        frame = frames[frameCount - 1];
+                        code = frame.code;
+                        constants = frame.constants;
+                        ip = frame.ip;
+                        base = frame.base;
+                        break;
+                    }
+                    case OpCode.TAIL_SUPER_INVOKE: {
+                        Symbol name = (Symbol) constants[code[ip]];
+                        int argCount = code[ip + 1];
+                        ip += 2;
+                        Obj.Class superclass = (Obj.Class) stack[--sp];
+                        stack[sp] = null;
+                        Obj.Closure method = superclass.methods.get(name);
+                        if (method == null) {
+                            throw error("Undefined property '" + name + "'.");
+                        }
+                        frame.ip = ip;
+                        this.sp = sp;
+                        tailCall(method, argCount);
+                        stack = this.stack;
+                        numbers = this.numbers;
+                        sp = this.sp;
+                        frame = frames[frameCount - 1];
+                        code = frame.code;
+                        constants = frame.constants;
+                        ip = frame.ip;
+                        base = frame.base;
+                        break;
+                    }
+                    case OpCode.CLOSURE: {
+                        Obj.Function function = (Obj.Function) constants[code[ip++]];
+                        Obj.Closure closure = new Obj.Closure(function);
+                        stack[sp++] = closure;
+                        for (int i = 0; i < closure.upvalues.length; i++) {
+                            boolean isLocal = code[ip++] == 1;
+                            int index = code[ip++];
+                            closure.upvalues[i] = isLocal
+                                    ? captureUpvalue(base + index)
+                                    : frame.closure.upvalues[index];
+                        }
+                        break;
+                    }
+                    case OpCode.CLOSE_UPVALUE:
+                        closeUpvalues(sp - 1);
+                        stack[--sp] = null;
+                        break;
+                    case OpCode.RETURN: {
+                        Object result = stack[sp - 1];
+                        double number = numbers[sp - 1];
+                        closeUpvalues(base);
+                        frameCount--;
+                        Arrays.fill(stack, base, sp, null);
+                        sp = base;
+                        if (frameCount == baseFrame) {
+                            this.sp = sp;
+                            return result == NUM ? (Object) number : result;
+                        }
+                        stack[sp] = result;
+                        numbers[sp] = number;
+                        sp++;
+                        frame = frames[frameCount - 1];
+                        code = frame.code;
+                        constants = frame.constants;
+                        ip = frame.ip;
+                        base = frame.base;
+                        break;
+                    }
+                    case OpCode.SET_LOCAL_POP: {
+                        int slot = base + code[ip++];
+                        stack[slot] = stack[--sp];
+                        numbers[slot] = numbers[sp];
+                        stack[sp] = null;
+                        break;
+                    }
+                    // 算术指令后面紧跟 SET_LOCAL_POP 时 (i = i + 1 这样的语句) 结果直接写进目标 slot
+                    case OpCode.ADD_LOCAL_NUMBER: {
+                        int slot = base + code[ip];
+                        double b = number(code, ip + 1);
+                        ip += 3;
+                        if (stack[slot] == NUM) {
+                            double result = numbers[slot] + b;
+                            int to = sp;
+                            if (code[ip] == OpCode.SET_LOCAL_POP) {
+                                to = base + code[ip + 1];
+                                ip += 2;
+                            } else {
+                                sp++;
+                            }
+                            stack[to] = NUM;
+                            numbers[to] = result;
+                        } else {
+                            stack[sp++] = concatenate(stack[slot], b);
+                        }
+                        break;
+                    }
+                    case OpCode.SUBTRACT_LOCAL_NUMBER: {
+                        int slot = base + code[ip];
+                        checkNumberOperands(stack[slot], NUM);
+                        double result = numbers[slot] - number(code, ip + 1);
+                        ip += 3;
+                        int to = sp;
+                        if (code[ip] == OpCode.SET_LOCAL_POP) {
+                            to = base + code[ip + 1];
+                            ip += 2;
+                        } else {
+                            sp++;
+                        }
+                        stack[to] = NUM;
+                        numbers[to] = result;
+                        break;
+                    }
+                    case OpCode.MULTIPLY_LOCAL_NUMBER: {
+                        int slot = base + code[ip];
+                        checkNumberOperands(stack[slot], NUM);
+                        double result = numbers[slot] * number(code, ip + 1);
+                        ip += 3;
+                        int to = sp;
+                        if (code[ip] == OpCode.SET_LOCAL_POP) {
+                            to = base + code[ip + 1];
+                            ip += 2;
+                        } else {
+                            sp++;
+                        }
+                        stack[to] = NUM;
+                        numbers[to] = result;
+                        break;
+                    }
+                    // 比较指令后面紧跟 POP_JUMP_IF_FALSE 时 (if 和循环的条件) 直接跳转, 不把结果压栈
+                    case OpCode.GREATER_LOCAL_NUMBER: {
+                        int slot = base + code[ip];
+                        checkNumberOperands(stack[slot], NUM);
+                        boolean result = numbers[slot] > number(code, ip + 1);
+                        ip += 3;
+                        if (code[ip] == OpCode.POP_JUMP_IF_FALSE) {
+                            ip = result ? ip + 2 : code[ip + 1];
+                        } else {
+                            stack[sp++] = result;
+                        }
+                        break;
+                    }
+                    case OpCode.GREATER_EQUAL_LOCAL_NUMBER: {
+                        int slot = base + code[ip];
+                        checkNumberOperands(stack[slot], NUM);
+                        boolean result = numbers[slot] >= number(code, ip + 1);
+                        ip += 3;
+                        if (code[ip] == OpCode.POP_JUMP_IF_FALSE) {
+                            ip = result ? ip + 2 : code[ip + 1];
+                        } else {
+                            stack[sp++] = result;
+                        }
+                        break;
+                    }
+                    case OpCode.LESS_LOCAL_NUMBER: {
+                        int slot = base + code[ip];
+                        checkNumberOperands(stack[slot], NUM);
+                        boolean result = numbers[slot] < number(code, ip + 1);
+                        ip += 3;
+                        if (code[ip] == OpCode.POP_JUMP_IF_FALSE) {
+                            ip = result ? ip + 2 : code[ip + 1];
+                        } else {
+                            stack[sp++] = result;
+                        }
+                        break;
+                    }
+                    case OpCode.LESS_EQUAL_LOCAL_NUMBER: {
+                        int slot = base + code[ip];
+                        checkNumberOperands(stack[slot], NUM);
+                        boolean result = numbers[slot] <= number(code, ip + 1);
+                        ip += 3;
+                        if (code[ip] == OpCode.POP_JUMP_IF_FALSE) {
+                            ip = result ? ip + 2 : code[ip + 1];
+                        } else {
+                            stack[sp++] = result;
+                        }
+                        break;
+                    }
+                    case OpCode.ADD_LOCAL_LOCAL: {
+                        int a = base + code[ip];
+                        int b = base + code[ip + 1];
+                        ip += 2;
+                        if (stack[a] == NUM && stack[b] == NUM) {
+                            double result = numbers[a] + numbers[b];
+                            int to = sp;
+                            if (code[ip] == OpCode.SET_LOCAL_POP) {
+                                to = base + code[ip + 1];
+                                ip += 2;
+                            } else {
+                                sp++;
+                            }
+                            stack[to] = NUM;
+                            numbers[to] = result;
+                        } else {
+                            stack[sp++] = concatenate(value(a), value(b));
+                        }
+                        break;
+                    }
+                    case OpCode.SUBTRACT_LOCAL_LOCAL: {
+                        int a = base + code[ip];
+                        int b = base + code[ip + 1];
+                        ip += 2;
+                        checkNumberOperands(stack[a], stack[b]);
+                        double result = numbers[a] - numbers[b];
+                        int to = sp;
+                        if (code[ip] == OpCode.SET_LOCAL_POP) {
+                            to = base + code[ip + 1];
+                            ip += 2;
+                        } else {
+                            sp++;
+                        }
+                        stack[to] = NUM;
+                        numbers[to] = result;
+                        break;
+                    }
+                    case OpCode.MULTIPLY_LOCAL_LOCAL: {
+                        int a = base + code[ip];
+                        int b = base + code[ip + 1];
+                        ip += 2;
+                        checkNumberOperands(stack[a], stack[b]);
+                        double result = numbers[a] * numbers[b];
+                        int to = sp;
+                        if (code[ip] == OpCode.SET_LOCAL_POP) {
+                            to = base + code[ip + 1];
+                            ip += 2;
+                        } else {
+                            sp++;
+                        }
+                        stack[to] = NUM;
+                        numbers[to] = result;
+                        break;
+                    }
+                    case OpCode.LESS_LOCAL_LOCAL: {
+                        int a = base + code[ip];
+                        int b = base + code[ip + 1];
+                        ip += 2;
+                        checkNumberOperands(stack[a], stack[b]);
+                        boolean result = numbers[a] < numbers[b];
+                        if (code[ip] == OpCode.POP_JUMP_IF_FALSE) {
+                            ip = result ? ip + 2 : code[ip + 1];
+                        } else {
+                            stack[sp++] = result;
+                        }
+                        break;
+                    }
+                    case OpCode.LESS_EQUAL_LOCAL_LOCAL: {
+                        int a = base + code[ip];
+                        int b = base + code[ip + 1];
+                        ip += 2;
+                        checkNumberOperands(stack[a], stack[b]);
+                        boolean result = numbers[a] <= numbers[b];
+                        if (code[ip] == OpCode.POP_JUMP_IF_FALSE) {
+                            ip = result ? ip + 2 : code[ip + 1];
+                        } else {
+                            stack[sp++] = result;
+                        }
+                        break;
+                    }
+                    case OpCode.CLASS:
+                        stack[sp++] = new Obj.Class(((Symbol) constants[code[ip++]]).name);
+                        break;
+                    case OpCode.INHERIT: {
+                        Object superclass = stack[sp - 2];
+                        if (!(superclass instanceof Obj.Class)) {
+                            throw error("Superclass must be a class.");
+                        }
+                        Obj.Class subclass = (Obj.Class) stack[--sp];
+                        stack[sp] = null;
+                        subclass.methods.putAll(((Obj.Class) superclass).methods);
+                        break;
+                    }
+                    case OpCode.METHOD: {
+                        Symbol name = (Symbol) constants[code[ip++]];
+                        Obj.Closure method = (Obj.Closure) stack[--sp];
+                        stack[sp] = null;
+                        ((Obj.Class) stack[sp - 1]).methods.put(name, method);
+                        break;
+                    }
+                    case OpCode.CLASS_METHOD: {
+                        Symbol name = (Symbol) constants[code[ip++]];
+                        Obj.Closure method = (Obj.Closure) stack[--sp];
+                        stack[sp] = null;
+                        ((Obj.Class) stack[sp - 1]).klassMethods.put(name, method);
+                        break;
+                    }
+                }
+            }
+        } catch (RuntimeError error) {
+            if (error.token != null) throw error;
+            // 补上出错指令所在的行号
+            int line = frame.closure.function.chunk.lines[ip - 1];
+            RuntimeError located = new RuntimeError(new Token(TokenType.EOF, "", null, line),
+                    error.getMessage());
+            located.backtrace = error.backtrace;
+            throw located;
+        }
+    }
+
+    // obj.method(args): 方法是普通方法时直接调用, 不创建 bound method
+    private void invoke(Symbol name, int argCount, boolean tail) {
+        Object receiver = stack[sp - argCount - 1];
+        if (!(receiver instanceof Obj.Instance)) {
+            throw error("Only instances have properties.");
+        }
+        Obj.Instance instance = (Obj.Instance) receiver;
+        if (!(instance instanceof Obj.Class) && instance.shape.slot(name) < 0) {
+            Obj.Closure method = instance.klass.methods.get(name);
+            if (method != null && !method.function.isGetter) {
+                if (tail) {
+                    tailCall(method, argCount);
+                } else {
+                    call(method, argCount);
+                }
+                return;
+            }
+        }
+
+        // 其余情况和先取属性再调用一样
+        Object callee = getProperty(instance, name);
+        store(sp - argCount - 1, callee);
+        if (tail) {
+            tailCallValue(argCount);
+        } else {
+            callValue(callee, argCount);
+        }
+    }
+
+    private Object getProperty(Obj.Instance instance, Symbol name) {
+        int slot = instance.shape.slot(name);
+        if (slot >= 0) {
+            Object value = instance.fields[slot];
+            if (value instanceof Obj.BoundMethod
+                    && ((Obj.BoundMethod) value).method.function.isGetter) {
+                return callGetter(((Obj.BoundMethod) value).receiver,
+                        ((Obj.BoundMethod) value).method);
+            }
+            return value;
+        }
+        Obj.Closure method = findMethod(instance, name);
+        if (method == null) {
+            throw error("Undefined property '" + name + "'.");
+        }
+        if (method.function.isGetter) {
+            return callGetter(instance, method);
+        }
+        return new Obj.BoundMethod(instance, method);
+    }
+
+    // 参数已经在栈上时没法把 getter 的帧垫在下面, 只好重入 run 把它执行完
+    private Object callGetter(Object receiver, Obj.Closure getter) {
+        push(receiver);
+        call(getter, 0);
+        try {
+            return run(frameCount - 1);
+        } catch (StackOverflowError error) {
+            throw stackOverflow();
+        }
+    }
+
+    private Obj.Closure findMethod(Obj.Instance instance, Symbol name) {
+        if (instance instanceof Obj.Class) {
+            return ((Obj.Class) instance).klassMethods.get(name);
+        }
+        return instance.klass.methods.get(name);
+    }
+
+    private void callValue(Object callee, int argCount) {
+        if (callee instanceof Obj.Closure) {
+            call((Obj.Closure) callee, argCount);
+        } else if (callee instanceof Obj.BoundMethod) {
+            Obj.BoundMethod bound = (Obj.BoundMethod) callee;
+            stack[sp - argCount - 1] = bound.receiver;
+            call(bound.method, argCount);
+        } else if (callee instanceof Obj.Class) {
+            Obj.Class klass = (Obj.Class) callee;
+            stack[sp - argCount - 1] = new Obj.Instance(klass);
+            Obj.Closure initializer = klass.methods.get(Symbol.INIT);
+            if (initializer != null) {
+                call(initializer, argCount);
+            } else if (argCount != 0) {
+                throw error("Expected 0 arguments but got " + argCount + ".");
+            }
+        } else if (callee instanceof Obj.Native) {
+            Obj.Native fn = (Obj.Native) callee;
+            if (argCount != fn.arity) {
+                throw error("Expected " + fn.arity + " arguments but got " + argCount + ".");
+            }
+            // 原生函数只认识装箱的值
+            for (int i = sp - argCount; i < sp; i++) {
+                stack[i] = value(i);
+            }
+            Object result = fn.body.call(stack, sp - argCount);
+            Arrays.fill(stack, sp - argCount - 1, sp, null);
+            sp -= argCount + 1;
+            push(result);
+        } else {
+            throw error("Can only call functions and classes.");
+        }
+    }
+
+    // 只有 Lox 函数能顶替当前的帧, 类和原生函数照常调用, 结果由后面的 RETURN 返回
+    private void tailCallValue(int argCount) {
+        Object callee = stack[sp - argCount - 1];
+        if (callee instanceof Obj.Closure) {
+            tailCall((Obj.Closure) callee, argCount);
+        } else if (callee instanceof Obj.BoundMethod) {
+            Obj.BoundMethod bound = (Obj.BoundMethod) callee;
+            stack[sp - argCount - 1] = bound.receiver;
+            tailCall(bound.method, argCount);
+        } else {
+            callValue(callee, argCount);
+        }
+    }
+
+    // 先关闭当前帧的 upvalue, 再把被调函数和参数挪到当前帧的 base, 然后在同一个位置压入新帧
+    // 参数个数不对时在挪动之前报错, 这样报错的行号和调用栈还是当前的帧
+    private void tailCall(Obj.Closure closure, int argCount) {
+        if (argCount != closure.function.arity) {
+            throw error("Expected " + closure.function.arity +
+                    " arguments but got " + argCount + ".");
+        }
+        int base = frames[frameCount - 1].base;
+        int from = sp - argCount - 1;
+        closeUpvalues(base);
+        System.arraycopy(stack, from, stack, base, argCount + 1);
+        System.arraycopy(numbers, from, numbers, base, argCount + 1);
+        int top = base + argCount + 1;
+        Arrays.fill(stack, top, sp, null);
+        sp = top;
+        frameCount--;
+        call(closure, argCount);
+    }
+
+    private void call(Obj.Closure closure, int argCount) {
+        if (argCount != closure.function.arity) {
+            throw error("Expected " + closure.function.arity +
+                    " arguments but got " + argCount + ".");
+        }
+        if (frameCount == FRAMES_MAX) {
+            throw stackOverflow();
+        }
+        if (frameCount == frames.length) {
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        }
+        CallFrame frame = frames[frameCount];
+        if (frame == null) {
+            frame = new CallFrame();
+            frames[frameCount] = frame;
+        }
+        frame.closure = closure;
+        frame.code = closure.function.chunk.code;
+        frame.constants = closure.function.chunk.constants;
+        frame.ip = 0;
+        frame.base = sp - argCount - 1;
+        frameCount++;
+        // 每条指令最多净压入一个值, 同一位置的栈高度总是相同, 所以函数在自己的帧里
+        // 用到的栈不会超过字节码的长度. 进入函数时留够空间, 执行指令时不再检查
+        int needed = sp + closure.function.chunk.count;
+        while (needed >= stack.length) {
+            growStack();
+        }
+    }
+
+    private Obj.Upvalue captureUpvalue(int slot) {
+        Obj.Upvalue prev = null;
+        Obj.Upvalue upvalue = openUpvalues;
+        while (upvalue != null && upvalue.slot > slot) {
+            prev = upvalue;
+            upvalue = upvalue.next;
+        }
+        if (upvalue != null && upvalue.slot == slot) {
+            return upvalue;
+        }
+
+        Obj.Upvalue created = new Obj.Upvalue(slot);
+        created.next = upvalue;
+        if (prev == null) {
+            openUpvalues = created;
+        } else {
+            prev.next = created;
+        }
+        return created;
+    }
+
+    private void closeUpvalues(int last) {
+        while (openUpvalues != null && openUpvalues.slot >= last) {
+            Obj.Upvalue upvalue = openUpvalues;
+            upvalue.closed = value(upvalue.slot);
+            upvalue.slot = -1;
+            openUpvalues = upvalue.next;
+        }
+    }
+
+    private void checkNumberOperands(Object left, Object right) {
+        if (left == NUM && right == NUM) return;
+        throw error("Operands must be numbers.");
+    }
+
+    // 行号在 run 里补上
+    private RuntimeError error(String message) {
+        return new RuntimeError(null, message);
+    }
+
+    // 从最里层的帧开始每个帧一行, 每个帧的 ip 在调用前都已经写回
+    private RuntimeError stackOverflow() {
+        RuntimeError error = error("Stack overflow.");
+        error.backtrace = new ArrayList<>(frameCount);
+        for (int i = frameCount - 1; i >= 0; i--) {
+            Obj.Function function = frames[i].closure.function;
+            int line = function.chunk.lines[Math.max(frames[i].ip - 1, 0)];
+            error.backtrace.add(RuntimeError.frame(line, function.name));
+        }
+        return error;
+    }
+
+    // + 的一边不是数字时只能是字符串拼接
+    private Object concatenate(Object a, Object b) {
+        if (a instanceof String) {
+            return (String) a + (b == null ? "nil" : b.toString());
+        }
+        throw error("Operands must be two numbers or two strings.");
+    }
+
+    private static double number(int[] code, int ip) {
+        return Double.longBitsToDouble(((long) code[ip] << 32) | (code[ip + 1] & 0xffffffffL));
+    }
+
+    // 两边都是数字时按 Double.equals 的规则比较, 不用装箱
+    private boolean isEqual(int left, int right) {
+        if (stack[left] == NUM && stack[right] == NUM) {
+            return Double.doubleToLongBits(numbers[left]) == Double.doubleToLongBits(numbers[right]);
+        }
+        return Interpreter.isEqual(value(left), value(right));
+    }
+
+    private Object value(int slot) {
+        Object value = stack[slot];
+        return value == NUM ? (Object) numbers[slot] : value;
+    }
+
+    private void store(int slot, Object value) {
+        if (value instanceof Double) {
+            stack[slot] = NUM;
+            numbers[slot] = (double) value;
+        } else {
+            stack[slot] = value;
+        }
+    }
+
+    private void push(Object value) {
+        if (sp == stack.length) {
+            growStack();
+        }
+        store(sp++, value);
+    }
+
+    private void growStack() {
+        stack = Arrays.copyOf(stack, stack.length * 2);
+        numbers = Arrays.copyOf(numbers, numbers.length * 2);
+    }
+}
@@ -13,35 +13,38 @@ public class GenerateAst {
         }
         String outputDir = args[0];
         defineAst(outputDir, "Expr", Arrays.asList(
-                "Assign   : Token name, Expr value",
-                "Binary     : Expr left, Token operator, Expr right",
+                "Assign   : Token name, Expr value : int depth = -1, int slot",
+                "Binary     : Expr left, Token operator, Expr right : int specialized",
                 "Comma      : Expr left, Expr right",
                 "Ternary    : Expr cond, Expr then, Expr elseThen",
                 "Grouping   : Expr expression",
                 "Literal    : Object value",
                 "Logical    : Expr left, Token operator, Expr right",
-                "Set      : Expr object, Token name, Expr value",
-                "Super    : Token keyword, Token method",
-                "This     : Token keyword",
+                "Set      : Expr object, Token name, Expr value : InlineCache cache = new InlineCache()",
+                "Super    : Token keyword, Token method : int depth = -1, int slot, int thisDepth = -1, int thisSlot",
+                "This     : Token keyword : int depth = -1, int slot",
                 "Unary      : Token operator, Expr right",
-                "Call     : Expr callee, Token paren, List<Expr> arguments",
-                "Get      : Expr object, Token name",
-                "Variable   : Token name"
+                "Call     : Expr callee, Token paren, List<Expr> arguments : int specialized",
+                "Get      : Expr object, Token name : InlineCache cache = new InlineCache()",
+                "Variable   : Token name : int depth = -1, int slot"
         ));
 
         // 新增部分开始
         defineAst(outputDir, "Stmt", Arrays.asList(
-                "Block      : List<Stmt> statements",
-                "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods, List<Stmt.Function> klassMethods",
+                "Block      : List<Stmt> statements : int slots, int base",
+                "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods, List<Stmt.Function> klassMethods" +
+                        " : int slot = -1, int superSlot",
                 "Expression : Expr expression",
                 "Function   : Token name, List<Token> params," +
-                        " List<Stmt> body, boolean isGetter",
+                        " List<Stmt> body, boolean isGetter : int slots, int slot = -1, int[] upvalues, int calls, volatile JitCode compiled",
                 "If         : Expr condition, Stmt thenBranch," +
                             " Stmt elseBranch",
                 "Print      : Expr expression",
-                "Return     : Token keyword, Expr value",
-                "Var        : Token name, Expr initializer",
+                "Return     : Token keyword, Expr value : boolean tail",
+                "Var        : Token name, Expr initializer : int slot = -1",
                 "While      : Expr condition, Stmt body",
+                "For        : Stmt initializer, Expr condition, Expr increment, Stmt body" +
+                        " : int slots, int base, int specialized",
                 "Break      : Token token"
         ));
     }
@@ -62,9 +65,12 @@ public class GenerateAst {
 
         // The AST classes.
         for (String type : types) {
-            String className = type.split(":")[0].trim();
-            String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            String[] parts = type.split(":");
+            String className = parts[0].trim();
+            String fields = parts[1].trim();
+            // 第三段是由 Resolver 或运行时回填的可变字段
+            String resolved = parts.length > 2 ? parts[2].trim() : null;
+            defineType(writer, baseName, className, fields, resolved);
         }
 
         // The base accept() method.
@@ -90,7 +96,7 @@ public class GenerateAst {
 
     private static void defineType(
             PrintWriter writer, String baseName,
-            String className, String fieldList) {
+            String className, String fieldList, String resolvedList) {
         writer.println("  public static class " + className + " extends " +
                 baseName + " {");
 
@@ -119,6 +125,11 @@ public class GenerateAst {
         for (String field : fields) {
             writer.println("   public final " + field + ";");
         }
+        if (resolvedList != null) {
+            for (String field : resolvedList.split(", ")) {
+                writer.println("   public " + field + ";");
+            }
+        }
 
         writer.println("  }");
     }
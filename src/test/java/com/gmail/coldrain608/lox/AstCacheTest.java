@@ -0,0 +1,75 @@
+package com.gmail.coldrain608.lox;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AstCacheTest {
+
+    @TempDir
+    Path directory;
+
+    // 第一次运行写入缓存, 第二次运行只读缓存, 两次的输出应该一样
+    private void assertSameWhenCached(String source) throws Exception {
+        Path script = LoxProcess.write(directory, "script.lox", source);
+        List<String> options = Collections.singletonList("-Dlox.cache.dir=" + directory.resolve("cache"));
+
+        LoxProcess cold = LoxProcess.run(script, options);
+        LoxProcess warm = LoxProcess.run(script, options);
+
+        assertTrue(directory.resolve("cache").toFile().list().length > 0, "cache file was not written");
+        assertEquals(cold.out, warm.out);
+        assertEquals(cold.err, warm.err);
+        assertEquals(cold.exit, warm.exit);
+    }
+
+    // 全局变量的 slot 是 Symbol.id, 两次运行驻留名字的顺序不同时也要找到同一个变量
+    @Test
+    void globalsResolveByNameOnWarmRun() throws Exception {
+        Path script = LoxProcess.write(directory, "globals.lox",
+                "if (false) { print zzz1; }\nvar x = \"X\";\nprint x;\n");
+        List<String> options = Collections.singletonList("-Dlox.cache.dir=" + directory.resolve("cache"));
+
+        for (int i = 0; i < 2; i++) {
+            LoxProcess run = LoxProcess.run(script, options);
+            assertEquals("X\n", run.out);
+            assertEquals("", run.err);
+            assertEquals(0, run.exit);
+        }
+    }
+
+    @Test
+    void roundTripsClosuresClassesAndLoops() throws Exception {
+        assertSameWhenCached(
+                "var total = 0;\n" +
+                "fun counter() { var c = 0; fun inc() { c = c + 1; return c; } return inc; }\n" +
+                "var next = counter();\n" +
+                "next(); next();\n" +
+                "print next();\n" +
+                "class A { init(x) { this.x = x; } get() { return this.x; } }\n" +
+                "class B < A { get() { return super.get() + 1; } }\n" +
+                "print B(41).get();\n" +
+                "for (var i = 0; i < 5; i = i + 1) { if (i == 3) break; total = total + i; }\n" +
+                "print total;\n" +
+                "print \"a\" + \"b\";\n" +
+                "print 1 < 2 ? nil : true;\n");
+    }
+
+    @Test
+    void roundTripsTailCalls() throws Exception {
+        assertSameWhenCached(
+                "fun loop(n) { if (n == 0) return \"done\"; return loop(n - 1); }\n" +
+                "print loop(100000);\n");
+    }
+
+    @Test
+    void roundTripsRuntimeErrors() throws Exception {
+        assertSameWhenCached("var a = 1;\nprint a + nil;\n");
+    }
+}
@@ -0,0 +1,82 @@
+package com.gmail.coldrain608.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Lox 的状态都是静态的, 出错时还会 System.exit, 所以每个脚本在单独的 JVM 里运行
+// JVM 选项 (-Dlox.xxx) 放在 options 里, 命令行参数 (--vm, --stream) 放在 args 里
+final class LoxProcess {
+
+    final String out;
+    final String err;
+    final int exit;
+
+    private LoxProcess(String out, String err, int exit) {
+        this.out = out;
+        this.err = err;
+        this.exit = exit;
+    }
+
+    static LoxProcess run(Path script, List<String> options, String... args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(java());
+        command.add("-Dfile.encoding=UTF-8");
+        command.addAll(options);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Lox.class.getName());
+        command.addAll(Arrays.asList(args));
+        command.add(script.toString());
+
+        ProcessBuilder builder = new ProcessBuilder(command);
+        // JVM 读到这个变量时会往 stderr 打印一行提示, 混进脚本的错误输出里
+        builder.environment().remove("JAVA_TOOL_OPTIONS");
+        Process process = builder.start();
+        process.getOutputStream().close();
+        // stderr 单独在一个线程里读, 两个管道都不会被写满
+        ByteArrayOutputStream err = new ByteArrayOutputStream();
+        Thread reader = new Thread(() -> copy(process.getErrorStream(), err));
+        reader.start();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        copy(process.getInputStream(), out);
+        int exit = process.waitFor();
+        reader.join();
+        return new LoxProcess(text(out), text(err), exit);
+    }
+
+    static LoxProcess run(Path script, String... args) throws IOException, InterruptedException {
+        return run(script, Collections.emptyList(), args);
+    }
+
+    static Path write(Path directory, String name, String source) throws IOException {
+        return Files.write(directory.resolve(name), source.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void copy(InputStream in, ByteArrayOutputStream out) {
+        byte[] buffer = new byte[8192];
+        try {
+            for (int n; (n = in.read(buffer)) > 0; ) {
+                out.write(buffer, 0, n);
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    // 统一换行符, Windows 上的比较也不受影响
+    private static String text(ByteArrayOutputStream bytes) {
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8).replace("\r\n", "\n");
+    }
+
+    private static String java() {
+        return Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+    }
+}
@@ -0,0 +1,65 @@
+package com.gmail.coldrain608.lox;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class MappedSourceTest {
+
+    @TempDir
+    Path directory;
+
+    // 末尾补一行很长的注释, 文件超过 1 MiB 就会映射到内存, 行号不受影响
+    private static String padded(String source) {
+        StringBuilder builder = new StringBuilder(source).append("//");
+        for (int i = 0; i < 1 << 20; i++) builder.append('x');
+        return builder.append('\n').toString();
+    }
+
+    private void assertSameWhenMapped(String source) throws Exception {
+        LoxProcess small = LoxProcess.run(LoxProcess.write(directory, "small.lox", source));
+        LoxProcess large = LoxProcess.run(LoxProcess.write(directory, "large.lox", padded(source)));
+
+        assertEquals(small.out, large.out);
+        assertEquals(small.err, large.err);
+        assertEquals(small.exit, large.exit);
+    }
+
+    @Test
+    void decodesNonAsciiStrings() throws Exception {
+        assertSameWhenMapped(
+                "// 注释 é\n" +
+                "var s = \"héllo 世界\";\n" +
+                "print s + \"✓\";\n");
+    }
+
+    // 非 ASCII 的文件分段解码, 很长的字符串跨过好几段, 代理对也可能落在段的边界上
+    @Test
+    void decodesAcrossWindows() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 50000; i++) text.append(i % 3 == 0 ? "\uD83D\uDE00" : "é");
+        assertSameWhenMapped(
+                "var s = \"" + text + "\";\n" +
+                "print s;\n" +
+                "print \"末尾\" + s;\n");
+    }
+
+    // 字符串外的多字节字符只报一次错, 不是每个字节一次
+    @Test
+    void reportsNonAsciiCharacterOnce() throws Exception {
+        assertSameWhenMapped(
+                "print \"é\";\n" +
+                "var é = 1;\n");
+    }
+
+    @Test
+    void runsAsciiScripts() throws Exception {
+        assertSameWhenMapped(
+                "var a = \"abc\";\n" +
+                "print a + \"d\";\n" +
+                "print 1 + ;\n");
+    }
+}
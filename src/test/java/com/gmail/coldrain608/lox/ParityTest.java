@@ -0,0 +1,217 @@
+package com.gmail.coldrain608.lox;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// 同一个脚本在 Interpreter, Jit 和 VM 下的输出, 报错和退出码都要一样
+class ParityTest {
+
+    private static final List<String> INTERPRETER = Collections.singletonList("-Dlox.jit.threshold=1000000000");
+    private static final List<String> COMPILED = Collections.singletonList("-Dlox.jit.threshold=1");
+
+    // 覆盖闭包, 继承, getter, 类方法, break, 三元运算符和字符串拼接, 最后以运行时错误结束
+    private static final String FEATURES =
+            "fun makeCounter() {\n" +
+            "  var count = 0;\n" +
+            "  fun increment() {\n" +
+            "    count = count + 1;\n" +
+            "    return count;\n" +
+            "  }\n" +
+            "  return increment;\n" +
+            "}\n" +
+            "var counter = makeCounter();\n" +
+            "counter();\n" +
+            "print counter();\n" +
+            "class Shape {\n" +
+            "  init(name) { this.name = name; }\n" +
+            "  area() { return 0; }\n" +
+            "  describe() { return this.name + \" with area \" + this.area(); }\n" +
+            "  class unit() { return Square(1); }\n" +
+            "}\n" +
+            "class Square < Shape {\n" +
+            "  init(side) {\n" +
+            "    super.init(\"square\");\n" +
+            "    this.side = side;\n" +
+            "  }\n" +
+            "  area { return this.side * this.side; }\n" +
+            "}\n" +
+            "class Circle < Shape {\n" +
+            "  init(r) { super.init(\"circle\"); this.r = r; }\n" +
+            "  area() { return 3 * this.r * this.r; }\n" +
+            "  describe() { return \"round \" + super.describe(); }\n" +
+            "}\n" +
+            "print Circle(2).describe();\n" +
+            "print Square(3).area;\n" +
+            "print Shape.unit().side;\n" +
+            "var total = 0;\n" +
+            "for (var i = 0; i < 100; i = i + 1) {\n" +
+            "  if (i == 50) break;\n" +
+            "  total = total + (i > 10 ? i : -i);\n" +
+            "}\n" +
+            "print total;\n" +
+            "print \"a\" + 1;\n" +
+            "print \"n\" + nil;\n" +
+            "print nil == false;\n" +
+            "print !nil;\n" +
+            "print 0 ? \"yes\" : \"no\";\n" +
+            "print 1 / 3;\n" +
+            "print Square;\n" +
+            "print Circle(1);\n" +
+            "print clock;\n" +
+            "print counter;\n" +
+            "var s = \"\";\n" +
+            "while (s != \"xxx\") s = s + \"x\";\n" +
+            "print s;\n" +
+            "print Square(2).missing;\n";
+
+    // 调用足够多次, 函数都被 Jit 编译, 最后的错误从编译后的代码里抛出
+    private static final String HOT =
+            "class Point {\n" +
+            "  init(x) { this.x = x; this.y = -x / 2; }\n" +
+            "  sum() { return this.x + this.y; }\n" +
+            "}\n" +
+            "fun walk(n) { return Point(n).sum() * 2 - 1; }\n" +
+            "fun order(a) { return a < 2 ? \"lt\" : a == 2 ? \"eq\" : \"gt\"; }\n" +
+            "var total = 0;\n" +
+            "var text = \"\";\n" +
+            "for (var i = 0; i < 20000; i = i + 1) {\n" +
+            "  total = total + walk(i);\n" +
+            "  if (i < 5) text = text + order(i);\n" +
+            "}\n" +
+            "print total;\n" +
+            "print text;\n" +
+            "print walk(nil);\n";
+
+    // Block, for, while 和函数里的局部变量, 多层捕获和 super, 两种引擎都按 Resolver 分配的 slot 访问
+    private static final String SCOPES =
+            "var f; var g;\n" +
+            "{\n" +
+            "  var a = \"a1\";\n" +
+            "  var b = \"b1\";\n" +
+            "  fun show() { print a + b; }\n" +
+            "  f = show;\n" +
+            "  { var c = \"c\"; fun inner() { return a + c; } g = inner; }\n" +
+            "  { var d = \"d\"; print d + a; }\n" +
+            "}\n" +
+            "f(); print g();\n" +
+            "for (var i = 0; i < 3; i = i + 1) { var j = i * 2; fun k() { return i + j; } print k(); }\n" +
+            "class A { hi() { return \"A\"; } }\n" +
+            "{\n" +
+            "  class B < A { hi() { return \"B\" + super.hi(); } }\n" +
+            "  print B().hi();\n" +
+            "  fun wrap() {\n" +
+            "    class C < B { hi() { fun z() { return \"C\" + super.hi(); } return z(); } }\n" +
+            "    return C().hi();\n" +
+            "  }\n" +
+            "  print wrap();\n" +
+            "}\n" +
+            "fun outer(x) {\n" +
+            "  var y = x + 1;\n" +
+            "  fun mid() {\n" +
+            "    var z = y + 1;\n" +
+            "    fun in(w) { y = y + w; return x + y + z; }\n" +
+            "    return in;\n" +
+            "  }\n" +
+            "  return mid();\n" +
+            "}\n" +
+            "var h = outer(1); print h(10); print h(10);\n" +
+            "var fs = nil;\n" +
+            "while (true) { var q = \"loop\"; fun cap() { return q; } fs = cap; break; }\n" +
+            "print fs();\n" +
+            "fun blocks(n) {\n" +
+            "  { var a = n; { var b = a + 1; print b; } }\n" +
+            "  { var c = n * 3; print c; }\n" +
+            "  return n;\n" +
+            "}\n" +
+            "print blocks(5);\n" +
+            "{ var t = 1; t = t + 1; print t; }\n" +
+            "class P { init(v) { this.v = v; } get() { fun f() { return this.v; } return f(); } }\n" +
+            "print P(7).get();\n";
+
+    // 超过 256 个局部变量, 很长的循环体和分支, 以及要把栈扩容的递归, VM 以前会拒绝或者处理不了
+    private static String largeSource() {
+        StringBuilder source = new StringBuilder("fun wide(n) {\n");
+        for (int i = 0; i < 300; i++) {
+            source.append("  var v").append(i).append(" = n + ").append(i).append(";\n");
+        }
+        source.append("  var total = 0;\n")
+                .append("  for (var i = 0; i < 3; i = i + 1) {\n")
+                .append("    if (i == 1) {\n");
+        for (int i = 0; i < 300; i++) {
+            source.append("      total = total + v").append(i).append(";\n");
+        }
+        source.append("    } else {\n")
+                .append("      total = total - v299;\n")
+                .append("    }\n")
+                .append("  }\n")
+                .append("  return total;\n")
+                .append("}\n")
+                .append("print wide(1);\n")
+                .append("fun depth(n) { return n == 0 ? 0 : 1 + depth(n - 1); }\n")
+                .append("print depth(400);\n")
+                .append("print v0;\n");
+        return source.toString();
+    }
+
+    @TempDir
+    Path directory;
+
+    private static void assertSame(LoxProcess expected, LoxProcess actual, String mode) {
+        assertEquals(expected.out, actual.out, mode);
+        assertEquals(expected.err, actual.err, mode);
+        assertEquals(expected.exit, actual.exit, mode);
+    }
+
+    private void assertSameInAllModes(String source) throws Exception {
+        Path script = LoxProcess.write(directory, "parity.lox", source);
+        LoxProcess interpreter = LoxProcess.run(script, INTERPRETER);
+
+        assertSame(interpreter, LoxProcess.run(script, COMPILED), "jit");
+        assertSame(interpreter, LoxProcess.run(script, Collections.emptyList(), "--vm"), "vm");
+    }
+
+    // test.lox 的第二行输出是耗时, 只比较 fib 的结果
+    @Test
+    void testLox() throws Exception {
+        Path script = Paths.get("test.lox");
+        LoxProcess interpreter = LoxProcess.run(script, INTERPRETER);
+        LoxProcess compiled = LoxProcess.run(script, COMPILED);
+        LoxProcess vm = LoxProcess.run(script, Collections.emptyList(), "--vm");
+
+        for (LoxProcess run : new LoxProcess[] {interpreter, compiled, vm}) {
+            assertEquals("", run.err);
+            assertEquals(0, run.exit);
+            String[] lines = run.out.split("\n");
+            assertEquals(2, lines.length, run.out);
+            assertEquals("55", lines[0]);
+            Double.parseDouble(lines[1]);
+        }
+    }
+
+    @Test
+    void features() throws Exception {
+        assertSameInAllModes(FEATURES);
+    }
+
+    @Test
+    void compiledCode() throws Exception {
+        assertSameInAllModes(HOT);
+    }
+
+    @Test
+    void scopes() throws Exception {
+        assertSameInAllModes(SCOPES);
+    }
+
+    @Test
+    void largeFunctions() throws Exception {
+        assertSameInAllModes(largeSource());
+    }
+}
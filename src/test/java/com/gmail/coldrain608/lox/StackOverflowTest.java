@@ -0,0 +1,147 @@
+package com.gmail.coldrain608.lox;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StackOverflowTest {
+
+    private static final String RECURSION =
+            "fun down(n) {\n" +
+            "  return 1 + down(n + 1);\n" +
+            "}\n" +
+            "fun start() {\n" +
+            "  return 0 + down(0);\n" +
+            "}\n" +
+            "start();\n";
+
+    private static final String GETTER =
+            "class A { g { return this.g + 1; } }\n" +
+            "print A().g;\n";
+
+    // Jit 在后台编译, 先用不会溢出的调用预热, 溢出时已经在执行编译后的代码
+    private static final String COMPILED_RECURSION =
+            "fun down(n) {\n" +
+            "  if (n < 0) return 0;\n" +
+            "  return 1 + down(n + 1);\n" +
+            "}\n" +
+            "fun start(n) {\n" +
+            "  return 0 + down(n);\n" +
+            "}\n" +
+            "for (var i = 0; i < 200000; i = i + 1) start(-1);\n" +
+            "start(0);\n";
+
+    private static final String COMPILED_GETTER =
+            "class A {\n" +
+            "  init(depth) { this.depth = depth; }\n" +
+            "  g { if (this.depth < 0) return 0; return this.g + 1; }\n" +
+            "}\n" +
+            "var warm = A(-1);\n" +
+            "for (var i = 0; i < 200000; i = i + 1) warm.g;\n" +
+            "print A(0).g;\n";
+
+    @TempDir
+    Path directory;
+
+    // 不管在哪种模式下溢出, 都是 Lox 的运行时错误, 带着从里到外的调用栈
+    private void assertOverflow(String source, String innermost, String outermost,
+                                List<String> options, String... args) throws Exception {
+        Path script = LoxProcess.write(directory, "overflow.lox", source);
+        LoxProcess run = LoxProcess.run(script, options, args);
+
+        assertEquals(70, run.exit, run.err);
+        String[] lines = run.err.split("\n");
+        assertEquals("Stack overflow.", lines[0]);
+        assertEquals(innermost, lines[1]);
+        assertEquals(outermost, lines[lines.length - 1]);
+        assertTrue(run.err.contains(" more frames]"), run.err);
+    }
+
+    @Test
+    void recursionInInterpreter() throws Exception {
+        assertOverflow(RECURSION, "[line 2] in down()", "[line 7] in script",
+                Collections.singletonList("-Dlox.jit.threshold=1000000000"));
+    }
+
+    @Test
+    void recursionInCompiledCode() throws Exception {
+        assertOverflow(COMPILED_RECURSION, "[line 3] in down()", "[line 9] in script",
+                Collections.singletonList("-Dlox.jit.threshold=1"));
+    }
+
+    @Test
+    void recursionInVm() throws Exception {
+        assertOverflow(RECURSION, "[line 2] in down()", "[line 7] in script",
+                Collections.emptyList(), "--vm");
+    }
+
+    private void assertFramesBudget(List<String> options, String... args) throws Exception {
+        Path script = LoxProcess.write(directory, "overflow.lox", RECURSION);
+        LoxProcess run = LoxProcess.run(script, options, args);
+
+        assertEquals(70, run.exit);
+        assertTrue(run.err.contains("[... 87 more frames]"), run.err);
+    }
+
+    @Test
+    void framesBudgetInInterpreter() throws Exception {
+        assertFramesBudget(Arrays.asList("-Dlox.frames=100", "-Dlox.jit.threshold=1000000000"));
+    }
+
+    @Test
+    void framesBudgetInCompiledCode() throws Exception {
+        assertFramesBudget(Arrays.asList("-Dlox.frames=100", "-Dlox.jit.threshold=1"));
+    }
+
+    @Test
+    void framesBudgetInVm() throws Exception {
+        assertFramesBudget(Collections.singletonList("-Dlox.frames=100"), "--vm");
+    }
+
+    // 不是尾调用的深递归只要在帧预算之内就能跑完, 不受默认线程栈大小的限制
+    @Test
+    void deepRecursionInInterpreter() throws Exception {
+        Path script = LoxProcess.write(directory, "deep.lox",
+                "fun d(n) { if (n == 0) return 0; return 1 + d(n - 1); }\nprint d(50000);\n");
+        LoxProcess run = LoxProcess.run(script, Collections.singletonList("-Dlox.jit.threshold=1000000000"));
+
+        assertEquals(0, run.exit, run.err);
+        assertEquals("50000\n", run.out);
+    }
+
+    @Test
+    void recursiveGetterInInterpreter() throws Exception {
+        assertOverflow(GETTER, "[line 1] in g()", "[line 2] in script",
+                Collections.singletonList("-Dlox.jit.threshold=1000000000"));
+    }
+
+    @Test
+    void recursiveGetterInCompiledCode() throws Exception {
+        assertOverflow(COMPILED_GETTER, "[line 3] in g()", "[line 7] in script",
+                Collections.singletonList("-Dlox.jit.threshold=1"));
+    }
+
+    @Test
+    void recursiveGetterInVm() throws Exception {
+        assertOverflow(GETTER, "[line 1] in g()", "[line 2] in script",
+                Collections.emptyList(), "--vm");
+    }
+
+    // 没有溢出的错误仍然只打印出错的那一行
+    @Test
+    void otherErrorsHaveNoBacktrace() throws Exception {
+        Path script = LoxProcess.write(directory, "error.lox",
+                "fun f(a) { return a + nil; }\nf(1);\n");
+        LoxProcess run = LoxProcess.run(script);
+
+        assertEquals(70, run.exit);
+        assertEquals("Operands must be two numbers or two strings.\n[line 1]\n", run.err);
+    }
+}
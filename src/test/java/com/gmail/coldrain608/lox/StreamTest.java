@@ -0,0 +1,67 @@
+package com.gmail.coldrain608.lox;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class StreamTest {
+
+    @TempDir
+    Path directory;
+
+    // 第一个错误之后的语句不再执行, 但仍然 resolve, 报告的错误和整个文件一起处理时一样
+    @Test
+    void reportsLaterStaticErrorsAfterTheFirst() throws Exception {
+        Path script = LoxProcess.write(directory, "errors.lox",
+                "print \"first\";\n" +
+                "return 1;\n" +
+                "print \"second\";\n" +
+                "{ var a = a; }\n" +
+                "fun f() { return 1; }\n" +
+                "print f();\n");
+
+        LoxProcess batch = LoxProcess.run(script);
+        LoxProcess stream = LoxProcess.run(script, "--stream");
+
+        assertEquals("", batch.out);
+        assertEquals("first\n", stream.out);
+        assertEquals("[line 2] Error at 'return': Can't return from top-level code.\n" +
+                "[line 4] Error at 'a': Can't read local variable in its own initializer.\n", batch.err);
+        assertEquals(batch.err, stream.err);
+        assertEquals(65, stream.exit);
+    }
+
+    // 整个文件先解析完, 有语法错误时和整个文件一起处理时一样什么都不执行, 只报告语法错误
+    @Test
+    void syntaxErrorRunsNothing() throws Exception {
+        Path script = LoxProcess.write(directory, "syntax.lox",
+                "print \"first\";\n" +
+                "var = 1;\n" +
+                "{ var a = a; }\n" +
+                "print ;\n");
+
+        LoxProcess batch = LoxProcess.run(script);
+        LoxProcess stream = LoxProcess.run(script, "--stream");
+
+        assertEquals("", batch.out);
+        assertEquals("", stream.out);
+        assertEquals(batch.err, stream.err);
+        assertEquals(65, stream.exit);
+    }
+
+    @Test
+    void runtimeErrorStopsExecution() throws Exception {
+        Path script = LoxProcess.write(directory, "runtime.lox",
+                "print \"first\";\n" +
+                "print 1 + nil;\n" +
+                "print \"second\";\n");
+
+        LoxProcess stream = LoxProcess.run(script, "--stream");
+
+        assertEquals("first\n", stream.out);
+        assertEquals(70, stream.exit);
+    }
+}
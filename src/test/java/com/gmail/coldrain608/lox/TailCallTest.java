@@ -0,0 +1,113 @@
+package com.gmail.coldrain608.lox;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+// 尾调用不占用 Java 栈, VM 里也不占用新的帧, 递归深度远超普通调用也不会溢出
+class TailCallTest {
+
+    private static final List<String> INTERPRETER = Collections.singletonList("-Dlox.jit.threshold=1000000000");
+    private static final List<String> COMPILED = Collections.singletonList("-Dlox.jit.threshold=1");
+
+    @TempDir
+    Path directory;
+
+    private void assertPrints(String source, String expected) throws Exception {
+        Path script = LoxProcess.write(directory, "tail.lox", source);
+        for (List<String> options : Arrays.asList(INTERPRETER, COMPILED)) {
+            assertRun(LoxProcess.run(script, options), expected, options.toString());
+        }
+        // VM 的帧在堆上, 但深度有 lox.frames 的上限, 尾调用复用当前的帧才不会超过
+        assertRun(LoxProcess.run(script, Collections.emptyList(), "--vm"), expected, "--vm");
+    }
+
+    private static void assertRun(LoxProcess run, String expected, String mode) {
+        assertEquals("", run.err, mode);
+        assertEquals(expected, run.out, mode);
+        assertEquals(0, run.exit, mode);
+    }
+
+    @Test
+    void selfRecursion() throws Exception {
+        assertPrints(
+                "fun count(n) {\n" +
+                "  if (n == 0) return \"done\";\n" +
+                "  return count(n - 1);\n" +
+                "}\n" +
+                "print count(1000000);\n",
+                "done\n");
+    }
+
+    @Test
+    void mutualRecursion() throws Exception {
+        assertPrints(
+                "fun isEven(n) {\n" +
+                "  if (n == 0) return true;\n" +
+                "  return isOdd(n - 1);\n" +
+                "}\n" +
+                "fun isOdd(n) {\n" +
+                "  if (n == 0) return false;\n" +
+                "  return isEven(n - 1);\n" +
+                "}\n" +
+                "print isEven(100001);\n",
+                "false\n");
+    }
+
+    @Test
+    void methodSuperAndBoundCalls() throws Exception {
+        assertPrints(
+                "class Loop {\n" +
+                "  run(n) {\n" +
+                "    if (n == 0) return \"method\";\n" +
+                "    return this.run(n - 1);\n" +
+                "  }\n" +
+                "}\n" +
+                "class SubLoop < Loop {\n" +
+                "  run(n) {\n" +
+                "    if (n == 0) return \"super\";\n" +
+                "    return super.run(n - 1);\n" +
+                "  }\n" +
+                "}\n" +
+                "print Loop().run(100000);\n" +
+                "print SubLoop().run(100000);\n" +
+                "var bound = Loop().run;\n" +
+                "print bound(100000);\n",
+                "method\nsuper\nmethod\n");
+    }
+
+    // 每一帧的 upvalue 在下一次调用之前关闭, 闭包仍然看到自己捕获的值
+    @Test
+    void closuresKeepCapturedValues() throws Exception {
+        assertPrints(
+                "var kept;\n" +
+                "fun capture(n) {\n" +
+                "  if (n == 0) return kept();\n" +
+                "  if (n == 3) {\n" +
+                "    fun get() { return n; }\n" +
+                "    kept = get;\n" +
+                "  }\n" +
+                "  return capture(n - 1);\n" +
+                "}\n" +
+                "print capture(100000);\n",
+                "3\n");
+    }
+
+    // 尾部位置的类和原生函数照常调用
+    @Test
+    void classesAndNativesInTailPosition() throws Exception {
+        assertPrints(
+                "class Box { init(value) { this.value = value; } }\n" +
+                "fun box(n) { return Box(n); }\n" +
+                "print box(7).value;\n" +
+                "fun now(n) { return clock(); }\n" +
+                "print now(1) > 0;\n",
+                "7\ntrue\n");
+    }
+}